@@ -0,0 +1,46 @@
+package com.marchinram.rxgallery;
+
+import android.net.Uri;
+
+/**
+ * A captured video with its actual size and duration, measured after capture.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CapturedVideo {
+
+    private final Uri uri;
+
+    private final long sizeBytes;
+
+    private final long durationMillis;
+
+    CapturedVideo(Uri uri, long sizeBytes, long durationMillis) {
+        this.uri = uri;
+        this.sizeBytes = sizeBytes;
+        this.durationMillis = durationMillis;
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    /**
+     * Returns the size of the video in bytes, or -1 if unknown.
+     */
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Returns the duration of the video in milliseconds, or -1 if unknown.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "CapturedVideo{uri=" + uri + ", sizeBytes=" + sizeBytes + ", durationMillis=" + durationMillis + "}";
+    }
+
+}
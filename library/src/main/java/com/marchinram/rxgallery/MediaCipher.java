@@ -0,0 +1,528 @@
+package com.marchinram.rxgallery;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Encrypts media at rest with AES-GCM in fixed size segments, so files of any size can be encrypted and
+ * decrypted as streams and any range of a file can be read by decrypting only the segments it covers.
+ * <p>
+ * Each file starts with a header holding the segment size, a random salt used to derive a key for the file
+ * from the master key and a random nonce prefix. Every segment is authenticated on its own, together with the
+ * header, using a nonce made of the prefix, the segment index and whether it is the last segment, so the header
+ * can't be changed and segments can't be reordered, dropped or truncated without decryption failing.
+ * <p>
+ * The master key must be raw key material ({@link SecretKey#getEncoded()} non-null) of 16 or 32 bytes.
+ * To use a key held in the Android KeyStore wrap a random data key with it and pass the data key here.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+@RequiresApi(Build.VERSION_CODES.KITKAT)
+public final class MediaCipher {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    private static final int MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final byte VERSION = 1;
+
+    private static final int SALT_SIZE = 16;
+
+    private static final int NONCE_PREFIX_SIZE = 7;
+
+    private static final int NONCE_SIZE = NONCE_PREFIX_SIZE + 4 + 1;
+
+    private static final int TAG_SIZE = 16;
+
+    private static final int HEADER_SIZE = 1 + 4 + SALT_SIZE + NONCE_PREFIX_SIZE;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private final byte[] masterKey;
+
+    private final int segmentSize;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Creates a MediaCipher with {@link #DEFAULT_SEGMENT_SIZE} segments.
+     *
+     * @param masterKey A raw AES key of 16 or 32 bytes.
+     */
+    public MediaCipher(@NonNull SecretKey masterKey) {
+        this(masterKey, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a MediaCipher.
+     *
+     * @param masterKey   A raw AES key of 16 or 32 bytes.
+     * @param segmentSize The number of plaintext bytes per segment when encrypting.
+     *                    Decryption uses the segment size stored in each file.
+     */
+    public MediaCipher(@NonNull SecretKey masterKey, int segmentSize) {
+        byte[] encoded = masterKey.getEncoded();
+        if (encoded == null || (encoded.length != 16 && encoded.length != 32)) {
+            throw new IllegalArgumentException("masterKey must be a raw key of 16 or 32 bytes");
+        }
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be > 0 and <= " + MAX_SEGMENT_SIZE);
+        }
+        this.masterKey = encoded;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns a Single which copies a Uri to a file, encrypting it as it is read.
+     *
+     * @param context     A Context to resolve the Uri with.
+     * @param uri         The Uri to import, e.g. from {@link RxGallery#gallery(android.app.Activity)}.
+     * @param destination The file to write the encrypted copy to.
+     * @return A Single which calls onSuccess with the destination file.
+     */
+    public Single<File> importEncrypted(@NonNull Context context, @NonNull final Uri uri, @NonNull final File destination) {
+        final ContentResolver contentResolver = context.getApplicationContext().getContentResolver();
+
+        return Single.fromCallable(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                InputStream is = contentResolver.openInputStream(uri);
+                if (is == null) {
+                    throw new FileNotFoundException("Unable to open " + uri);
+                }
+                try {
+                    OutputStream fos = new FileOutputStream(destination);
+                    OutputStream os;
+                    try {
+                        os = newEncryptingStream(fos);
+                    } catch (Exception e) {
+                        fos.close();
+                        throw e;
+                    }
+                    try {
+                        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                        int read;
+                        while ((read = is.read(buffer)) != -1) {
+                            os.write(buffer, 0, read);
+                        }
+                    } finally {
+                        os.close();
+                    }
+                } catch (Exception e) {
+                    // Don't leave a partial file behind, whatever went wrong
+                    //noinspection ResultOfMethodCallIgnored
+                    destination.delete();
+                    throw e;
+                } finally {
+                    is.close();
+                }
+                return destination;
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Returns a stream which encrypts everything written to it into another stream.
+     * The last segment is only written when the returned stream is closed.
+     */
+    public OutputStream newEncryptingStream(@NonNull OutputStream out) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        ByteBuffer.wrap(header).put(VERSION).putInt(segmentSize);
+        byte[] saltAndPrefix = new byte[SALT_SIZE + NONCE_PREFIX_SIZE];
+        random.nextBytes(saltAndPrefix);
+        System.arraycopy(saltAndPrefix, 0, header, 5, saltAndPrefix.length);
+        out.write(header);
+        return new EncryptingOutputStream(out, new SegmentCipher(masterKey, header, Cipher.ENCRYPT_MODE), segmentSize);
+    }
+
+    /**
+     * Returns a stream which decrypts another stream written by {@link #newEncryptingStream(OutputStream)}.
+     * Reads throw an IOException if the stream has been modified or truncated.
+     */
+    public InputStream newDecryptingStream(@NonNull InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        readFully(in, header);
+        int segmentSize = readSegmentSize(header);
+        return new DecryptingInputStream(in, new SegmentCipher(masterKey, header, Cipher.DECRYPT_MODE), segmentSize);
+    }
+
+    /**
+     * Returns a reader for random access to a file written by {@link #newEncryptingStream(OutputStream)}.
+     * The channel is not closed by the reader.
+     */
+    public SeekableDecryptor newSeekableDecryptor(@NonNull FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        int segmentSize = readSegmentSize(header.array());
+        return new SeekableDecryptor(channel, new SegmentCipher(masterKey, header.array(), Cipher.DECRYPT_MODE), segmentSize);
+    }
+
+    private static int readSegmentSize(byte[] header) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (buffer.get() != VERSION) {
+            throw new IOException("Unsupported encrypted media version");
+        }
+        int segmentSize = buffer.getInt();
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IOException("Invalid segment size " + segmentSize);
+        }
+        return segmentSize;
+    }
+
+    private static void readFully(InputStream in, byte[] b) throws IOException {
+        int total = 0;
+        while (total < b.length) {
+            int read = in.read(b, total, b.length - total);
+            if (read == -1) {
+                throw new EOFException("Encrypted media is truncated");
+            }
+            total += read;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0) {
+                throw new EOFException("Encrypted media is truncated");
+            }
+        }
+    }
+
+    /**
+     * Encrypts or decrypts single segments with the key derived for one file.
+     */
+    private static final class SegmentCipher {
+
+        private final Cipher cipher;
+
+        private final SecretKeySpec key;
+
+        private final byte[] header;
+
+        private final byte[] nonce = new byte[NONCE_SIZE];
+
+        private final int mode;
+
+        private SegmentCipher(byte[] masterKey, byte[] header, int mode) throws IOException {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(masterKey, "HmacSHA256"));
+                mac.update(header, 5, SALT_SIZE);
+                byte[] derived = mac.doFinal();
+                key = new SecretKeySpec(Arrays.copyOf(derived, masterKey.length), "AES");
+                cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to initialize cipher", e);
+            }
+            System.arraycopy(header, 5 + SALT_SIZE, nonce, 0, NONCE_PREFIX_SIZE);
+            this.header = header.clone();
+            this.mode = mode;
+        }
+
+        /**
+         * Encrypts or decrypts a segment into output, returning the number of bytes written.
+         */
+        private int doFinal(long index, boolean last, byte[] input, int inputLength, byte[] output) throws IOException {
+            if (index > 0xFFFFFFFFL) {
+                throw new IOException("Too many segments");
+            }
+            ByteBuffer.wrap(nonce, NONCE_PREFIX_SIZE, 5).putInt((int) index).put((byte) (last ? 1 : 0));
+            try {
+                cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+                // Binds the version and segment size to every segment
+                cipher.updateAAD(header);
+                return cipher.doFinal(input, 0, inputLength, output, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Segment " + index + " failed authentication", e);
+            }
+        }
+
+    }
+
+    private static final class EncryptingOutputStream extends FilterOutputStream {
+
+        private final SegmentCipher cipher;
+
+        private final byte[] plaintext;
+
+        private final byte[] ciphertext;
+
+        private final byte[] single = new byte[1];
+
+        private int position;
+
+        private long index;
+
+        private boolean closed;
+
+        private EncryptingOutputStream(OutputStream out, SegmentCipher cipher, int segmentSize) {
+            super(out);
+            this.cipher = cipher;
+            this.plaintext = new byte[segmentSize];
+            this.ciphertext = new byte[segmentSize + TAG_SIZE];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                // A full segment is only encrypted once more data arrives, since the last one is marked
+                if (position == plaintext.length) {
+                    writeSegment(false);
+                }
+                int count = Math.min(len, plaintext.length - position);
+                System.arraycopy(b, off, plaintext, position, count);
+                position += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeSegment(true);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            int length = cipher.doFinal(index++, last, plaintext, position, ciphertext);
+            out.write(ciphertext, 0, length);
+            position = 0;
+        }
+
+    }
+
+    private static final class DecryptingInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final SegmentCipher cipher;
+
+        private final int ciphertextSegmentSize;
+
+        /**
+         * Holds a segment plus one byte, which tells whether another segment follows.
+         */
+        private final byte[] ciphertext;
+
+        private final byte[] plaintext;
+
+        private final byte[] single = new byte[1];
+
+        private int ciphertextLength;
+
+        private int plaintextPosition;
+
+        private int plaintextLength;
+
+        private long index;
+
+        private boolean lastRead;
+
+        private DecryptingInputStream(InputStream in, SegmentCipher cipher, int segmentSize) {
+            this.in = in;
+            this.cipher = cipher;
+            this.ciphertextSegmentSize = segmentSize + TAG_SIZE;
+            this.ciphertext = new byte[ciphertextSegmentSize + 1];
+            this.plaintext = new byte[ciphertextSegmentSize];
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (plaintextPosition == plaintextLength) {
+                if (lastRead) {
+                    return -1;
+                }
+                readSegment();
+            }
+            int count = Math.min(len, plaintextLength - plaintextPosition);
+            System.arraycopy(plaintext, plaintextPosition, b, off, count);
+            plaintextPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return plaintextLength - plaintextPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void readSegment() throws IOException {
+            ciphertextLength += readFully(in, ciphertext, ciphertextLength, ciphertext.length - ciphertextLength);
+            lastRead = ciphertextLength < ciphertext.length;
+            int segmentLength = lastRead ? ciphertextLength : ciphertextSegmentSize;
+            if (segmentLength < TAG_SIZE) {
+                throw new EOFException("Encrypted media is truncated");
+            }
+            plaintextLength = cipher.doFinal(index++, lastRead, ciphertext, segmentLength, plaintext);
+            plaintextPosition = 0;
+            if (lastRead) {
+                ciphertextLength = 0;
+            } else {
+                ciphertext[0] = ciphertext[ciphertextSegmentSize];
+                ciphertextLength = 1;
+            }
+        }
+
+        private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+            int total = 0;
+            while (total < len) {
+                int read = in.read(b, off + total, len - total);
+                if (read == -1) {
+                    break;
+                }
+                total += read;
+            }
+            return total;
+        }
+
+    }
+
+    /**
+     * Random access reads of an encrypted file, decrypting only the segments which are read.
+     * The most recently decrypted segment is kept so sequential reads decrypt each segment once.
+     */
+    public static final class SeekableDecryptor {
+
+        private final FileChannel channel;
+
+        private final SegmentCipher cipher;
+
+        private final int segmentSize;
+
+        private final int ciphertextSegmentSize;
+
+        private final long segmentCount;
+
+        private final long size;
+
+        private final ByteBuffer ciphertext;
+
+        private final byte[] plaintext;
+
+        private long plaintextIndex = -1;
+
+        private int plaintextLength;
+
+        private SeekableDecryptor(FileChannel channel, SegmentCipher cipher, int segmentSize) throws IOException {
+            this.channel = channel;
+            this.cipher = cipher;
+            this.segmentSize = segmentSize;
+            this.ciphertextSegmentSize = segmentSize + TAG_SIZE;
+            this.ciphertext = ByteBuffer.allocate(ciphertextSegmentSize);
+            this.plaintext = new byte[ciphertextSegmentSize];
+
+            long ciphertextSize = channel.size() - HEADER_SIZE;
+            segmentCount = (ciphertextSize + ciphertextSegmentSize - 1) / ciphertextSegmentSize;
+            long lastSegmentSize = ciphertextSize - (segmentCount - 1) * ciphertextSegmentSize;
+            if (segmentCount == 0 || lastSegmentSize < TAG_SIZE) {
+                throw new EOFException("Encrypted media is truncated");
+            }
+            size = (segmentCount - 1) * segmentSize + lastSegmentSize - TAG_SIZE;
+        }
+
+        /**
+         * Returns the size of the decrypted file in bytes.
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Reads decrypted bytes starting at a position into a buffer.
+         *
+         * @return The number of bytes read, or -1 if the position is at or past the end of the file.
+         */
+        public synchronized int read(@NonNull ByteBuffer dst, long position) throws IOException {
+            if (position < 0) {
+                throw new IllegalArgumentException("position must be >= 0");
+            }
+            if (position >= size) {
+                return -1;
+            }
+            int total = 0;
+            while (dst.hasRemaining() && position < size) {
+                long index = position / segmentSize;
+                int offset = (int) (position - index * segmentSize);
+                decryptSegment(index);
+                int count = Math.min(dst.remaining(), plaintextLength - offset);
+                dst.put(plaintext, offset, count);
+                position += count;
+                total += count;
+            }
+            return total;
+        }
+
+        private void decryptSegment(long index) throws IOException {
+            if (index == plaintextIndex) {
+                return;
+            }
+            plaintextIndex = -1;
+            boolean last = index == segmentCount - 1;
+            long start = HEADER_SIZE + index * ciphertextSegmentSize;
+            ciphertext.clear();
+            ciphertext.limit((int) Math.min(ciphertextSegmentSize, channel.size() - start));
+            readFully(channel, ciphertext, start);
+            plaintextLength = cipher.doFinal(index, last, ciphertext.array(), ciphertext.limit(), plaintext);
+            plaintextIndex = index;
+        }
+
+    }
+
+}
@@ -0,0 +1,555 @@
+package com.marchinram.rxgallery;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Flowable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.BiFunction;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Uploads the Uris returned by {@link RxGallery} in fixed size chunks, several chunks at a time.
+ * <p>
+ * Each chunk is sent as an HTTP PUT to the endpoint with the headers:
+ * <ul>
+ * <li>{@code Upload-Id}: an id which is the same for every chunk of a file, including after resuming</li>
+ * <li>{@code Content-Range}: {@code bytes <first>-<last>/<total>}, or {@code bytes *}{@code /0} for the single
+ * empty request sent for an empty file</li>
+ * </ul>
+ * Any 2xx response marks the chunk as uploaded, failed chunks are retried with exponential backoff.
+ * Uploaded chunks are persisted, so uploading the same unmodified Uri to the same endpoint again after a failure
+ * only sends the chunks which are missing. Progress which hasn't been updated for a week is discarded.
+ * Uris must be backed by a file, i.e. {@link ContentResolver#openFileDescriptor(Uri, String)} must succeed.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class MediaUploader {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 3;
+
+    public static final int DEFAULT_MAX_RETRIES = 2;
+
+    static final String HEADER_UPLOAD_ID = "Upload-Id";
+
+    static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    static final String PREFS_NAME = "com.marchinram.rxgallery.uploads";
+
+    /**
+     * Persisted progress which hasn't been updated for this long is discarded.
+     */
+    static final long STATE_EXPIRY_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+    private static final long RETRY_BACKOFF_MILLIS = 500;
+
+    private final ContentResolver contentResolver;
+
+    private final SharedPreferences prefs;
+
+    private final URL endpoint;
+
+    private final int chunkSize;
+
+    private final int maxConcurrency;
+
+    private final int maxRetries;
+
+    private final Map<String, String> headers;
+
+    private MediaUploader(Context context, URL endpoint, int chunkSize, int maxConcurrency, int maxRetries,
+                          Map<String, String> headers) {
+        this.contentResolver = context.getContentResolver();
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.endpoint = endpoint;
+        this.chunkSize = chunkSize;
+        this.maxConcurrency = maxConcurrency;
+        this.maxRetries = maxRetries;
+        this.headers = headers;
+    }
+
+    /**
+     * Returns a Flowable which uploads Uris one after another.
+     *
+     * @param uris The Uris to upload, e.g. from {@link RxGallery#gallery(android.app.Activity, boolean)}.
+     * @return A Flowable which emits the progress of each Uri as its chunks are uploaded.
+     */
+    public Flowable<Progress> upload(@NonNull List<Uri> uris) {
+        return Flowable.fromIterable(uris).concatMap(new Function<Uri, Flowable<Progress>>() {
+            @Override
+            public Flowable<Progress> apply(@io.reactivex.annotations.NonNull Uri uri) throws Exception {
+                return upload(uri);
+            }
+        });
+    }
+
+    /**
+     * Returns a Flowable which uploads a Uri, resuming a previous upload of it to the same endpoint.
+     *
+     * @param uri The Uri to upload, e.g. from {@link RxGallery#photoCapture(android.app.Activity)}.
+     * @return A Flowable which emits the progress already made and then the progress after each chunk,
+     * and completes once every chunk has been uploaded.
+     */
+    public Flowable<Progress> upload(@NonNull final Uri uri) {
+        return Flowable.using(new Callable<Source>() {
+            @Override
+            public Source call() throws Exception {
+                return new Source(contentResolver, uri);
+            }
+        }, new Function<Source, Flowable<Progress>>() {
+            @Override
+            public Flowable<Progress> apply(@io.reactivex.annotations.NonNull Source source) throws Exception {
+                return upload(uri, source);
+            }
+        }, new Consumer<Source>() {
+            @Override
+            public void accept(@io.reactivex.annotations.NonNull Source source) throws Exception {
+                source.close();
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    private Flowable<Progress> upload(final Uri uri, final Source source) throws IOException {
+        final long totalBytes = source.channel.size();
+        final String stateKey = endpoint + " " + chunkSize + " " + uri;
+        final UploadState state = UploadState.load(prefs, stateKey, totalBytes,
+                MediaUtils.queryLastModified(contentResolver, uri));
+
+        List<Long> pendingOffsets = new ArrayList<>();
+        long uploadedBytes = 0;
+        for (long offset = 0; offset < totalBytes; offset += chunkSize) {
+            if (state.isUploaded(offset / chunkSize)) {
+                uploadedBytes += chunkLength(offset, totalBytes);
+            } else {
+                pendingOffsets.add(offset);
+            }
+        }
+        if (totalBytes == 0) {
+            // Still tell the server about an empty file
+            pendingOffsets.add(0L);
+        }
+
+        Flowable<Integer> chunkLengths = Flowable.fromIterable(pendingOffsets).flatMap(new Function<Long, Flowable<Integer>>() {
+            @Override
+            public Flowable<Integer> apply(@io.reactivex.annotations.NonNull final Long offset) throws Exception {
+                return Flowable.fromCallable(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int length = chunkLength(offset, totalBytes);
+                        uploadChunk(source.channel, state.getUploadId(), offset, length, totalBytes);
+                        state.markUploaded(prefs, offset / chunkSize);
+                        return length;
+                    }
+                }).subscribeOn(Schedulers.io()).retryWhen(new RetryWithBackoff(maxRetries));
+            }
+        }, maxConcurrency);
+
+        // Summed after flatMap, which serializes chunks, so progress never goes backwards
+        return chunkLengths.scan(uploadedBytes, new BiFunction<Long, Integer, Long>() {
+            @Override
+            public Long apply(@io.reactivex.annotations.NonNull Long uploaded,
+                              @io.reactivex.annotations.NonNull Integer length) throws Exception {
+                return uploaded + length;
+            }
+        }).map(new Function<Long, Progress>() {
+            @Override
+            public Progress apply(@io.reactivex.annotations.NonNull Long uploaded) throws Exception {
+                return new Progress(uri, uploaded, totalBytes);
+            }
+        }).doOnComplete(new Action() {
+            @Override
+            public void run() throws Exception {
+                state.clear(prefs);
+            }
+        });
+    }
+
+    private int chunkLength(long offset, long totalBytes) {
+        return (int) Math.min(chunkSize, totalBytes - offset);
+    }
+
+    private void uploadChunk(FileChannel channel, String uploadId, long offset, int length, long totalBytes)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            // Positional reads don't move the channel's position so chunks can be read concurrently
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (offset + buffer.position()));
+            }
+        }
+        buffer.flip();
+
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("PUT");
+            connection.setFixedLengthStreamingMode(length);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty(HEADER_UPLOAD_ID, uploadId);
+            connection.setRequestProperty(HEADER_CONTENT_RANGE, length > 0
+                    ? "bytes " + offset + "-" + (offset + length - 1) + "/" + totalBytes
+                    : "bytes */" + totalBytes);
+
+            OutputStream os = connection.getOutputStream();
+            try {
+                WritableByteChannel out = Channels.newChannel(os);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            } finally {
+                os.close();
+            }
+
+            int responseCode = connection.getResponseCode();
+            InputStream is = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (is != null) {
+                is.close();
+            }
+            if (responseCode < 200 || responseCode >= 300) {
+                throw new IOException("Uploading bytes " + offset + "-" + (offset + length - 1)
+                        + " failed with HTTP " + responseCode);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Retries up to maxRetries times, waiting {@link #RETRY_BACKOFF_MILLIS} before the first retry
+     * and doubling the wait for each one after.
+     */
+    private static final class RetryWithBackoff implements Function<Flowable<Throwable>, Flowable<Long>> {
+
+        private final int maxRetries;
+
+        private RetryWithBackoff(int maxRetries) {
+            this.maxRetries = maxRetries;
+        }
+
+        @Override
+        public Flowable<Long> apply(@io.reactivex.annotations.NonNull Flowable<Throwable> errors) throws Exception {
+            return errors.zipWith(Flowable.range(1, maxRetries + 1), new BiFunction<Throwable, Integer, Integer>() {
+                @Override
+                public Integer apply(@io.reactivex.annotations.NonNull Throwable throwable,
+                                     @io.reactivex.annotations.NonNull Integer attempt) throws Exception {
+                    if (attempt > maxRetries) {
+                        if (throwable instanceof Exception) {
+                            throw (Exception) throwable;
+                        }
+                        throw new RuntimeException(throwable);
+                    }
+                    return attempt;
+                }
+            }).flatMap(new Function<Integer, Flowable<Long>>() {
+                @Override
+                public Flowable<Long> apply(@io.reactivex.annotations.NonNull Integer attempt) throws Exception {
+                    return Flowable.timer(RETRY_BACKOFF_MILLIS << (attempt - 1), TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+
+    }
+
+    /**
+     * Progress of an upload.
+     */
+    public static final class Progress {
+
+        private final Uri uri;
+
+        private final long uploadedBytes;
+
+        private final long totalBytes;
+
+        private Progress(Uri uri, long uploadedBytes, long totalBytes) {
+            this.uri = uri;
+            this.uploadedBytes = uploadedBytes;
+            this.totalBytes = totalBytes;
+        }
+
+        public Uri getUri() {
+            return uri;
+        }
+
+        public long getUploadedBytes() {
+            return uploadedBytes;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public boolean isComplete() {
+            return uploadedBytes == totalBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Progress{uri=" + uri + ", uploadedBytes=" + uploadedBytes + ", totalBytes=" + totalBytes + "}";
+        }
+
+    }
+
+    /**
+     * An open file for a Uri.
+     */
+    private static final class Source {
+
+        private final ParcelFileDescriptor pfd;
+
+        private final FileChannel channel;
+
+        private Source(ContentResolver contentResolver, Uri uri) throws FileNotFoundException {
+            pfd = contentResolver.openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                throw new FileNotFoundException("Unable to open " + uri);
+            }
+            channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+        }
+
+        private void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                pfd.close();
+            }
+        }
+
+    }
+
+    /**
+     * The upload id and uploaded chunks of a file, persisted as
+     * {@code <uploadId>;<totalBytes>;<lastModified>;<updatedAt>;<uploadedChunks>;<chunk>,<chunk>,...}
+     * where the first {@code uploadedChunks} chunks have all been uploaded, followed by the indexes of chunks
+     * uploaded after them. Chunks complete roughly in order, so the stored value stays small however large the file.
+     * The state is discarded if the size or modification time of the file changed.
+     */
+    private static final class UploadState {
+
+        private final String key;
+
+        private final String uploadId;
+
+        private final long totalBytes;
+
+        private final long lastModified;
+
+        private long uploadedChunks;
+
+        private final Set<Long> chunksAfter;
+
+        private UploadState(String key, String uploadId, long totalBytes, long lastModified, long uploadedChunks,
+                            Set<Long> chunksAfter) {
+            this.key = key;
+            this.uploadId = uploadId;
+            this.totalBytes = totalBytes;
+            this.lastModified = lastModified;
+            this.uploadedChunks = uploadedChunks;
+            this.chunksAfter = chunksAfter;
+        }
+
+        private static UploadState load(SharedPreferences prefs, String key, long totalBytes, long lastModified) {
+            removeExpired(prefs, System.currentTimeMillis());
+            String value = prefs.getString(key, null);
+            if (value != null) {
+                String[] parts = value.split(";", -1);
+                try {
+                    if (parts.length == 6 && Long.parseLong(parts[1]) == totalBytes
+                            && Long.parseLong(parts[2]) == lastModified) {
+                        Set<Long> chunksAfter = new HashSet<>();
+                        for (String chunk : parts[5].split(",")) {
+                            if (chunk.length() > 0) {
+                                chunksAfter.add(Long.parseLong(chunk));
+                            }
+                        }
+                        return new UploadState(key, parts[0], totalBytes, lastModified, Long.parseLong(parts[4]),
+                                chunksAfter);
+                    }
+                } catch (NumberFormatException ignored) {
+                    // Corrupt state, start over
+                }
+            }
+            return new UploadState(key, UUID.randomUUID().toString(), totalBytes, lastModified, 0,
+                    new HashSet<Long>());
+        }
+
+        /**
+         * Removes the state of uploads which were abandoned or can't be read.
+         */
+        private static void removeExpired(SharedPreferences prefs, long now) {
+            SharedPreferences.Editor editor = null;
+            for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+                boolean expired = true;
+                if (entry.getValue() instanceof String) {
+                    String[] parts = ((String) entry.getValue()).split(";", -1);
+                    try {
+                        expired = parts.length != 6 || now - Long.parseLong(parts[3]) > STATE_EXPIRY_MILLIS;
+                    } catch (NumberFormatException ignored) {
+                        // Corrupt state, remove it
+                    }
+                }
+                if (expired) {
+                    if (editor == null) {
+                        editor = prefs.edit();
+                    }
+                    editor.remove(entry.getKey());
+                }
+            }
+            if (editor != null) {
+                editor.apply();
+            }
+        }
+
+        private String getUploadId() {
+            return uploadId;
+        }
+
+        private synchronized boolean isUploaded(long chunk) {
+            return chunk < uploadedChunks || chunksAfter.contains(chunk);
+        }
+
+        private synchronized void markUploaded(SharedPreferences prefs, long chunk) {
+            chunksAfter.add(chunk);
+            while (chunksAfter.remove(uploadedChunks)) {
+                uploadedChunks++;
+            }
+            StringBuilder value = new StringBuilder(uploadId).append(';').append(totalBytes).append(';')
+                    .append(lastModified).append(';').append(System.currentTimeMillis()).append(';')
+                    .append(uploadedChunks).append(';');
+            boolean first = true;
+            for (Long after : chunksAfter) {
+                if (!first) {
+                    value.append(',');
+                }
+                value.append(after);
+                first = false;
+            }
+            prefs.edit().putString(key, value.toString()).apply();
+        }
+
+        private synchronized void clear(SharedPreferences prefs) {
+            prefs.edit().remove(key).apply();
+        }
+
+    }
+
+    public static final class Builder {
+
+        private final Context context;
+
+        private final URL endpoint;
+
+        private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+        private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+
+        private final Map<String, String> headers = new LinkedHashMap<>();
+
+        /**
+         * Creates a {@link Builder} for a {@link MediaUploader}.
+         *
+         * @param context  A Context to read Uris and persist upload progress with.
+         * @param endpoint The URL chunks are PUT to.
+         */
+        public Builder(@NonNull Context context, @NonNull URL endpoint) {
+            this.context = context.getApplicationContext();
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Sets the size in bytes of each chunk, defaults to {@link #DEFAULT_CHUNK_SIZE}.
+         * <p>
+         * Changing the chunk size means previously persisted progress can't be resumed.
+         *
+         * @return This Builder object to allow for chaining of calls.
+         */
+        public Builder setChunkSize(int chunkSize) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("chunkSize must be > 0");
+            }
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Sets how many chunks are uploaded at once, defaults to {@link #DEFAULT_MAX_CONCURRENCY}.
+         *
+         * @return This Builder object to allow for chaining of calls.
+         */
+        public Builder setMaxConcurrency(int maxConcurrency) {
+            if (maxConcurrency <= 0) {
+                throw new IllegalArgumentException("maxConcurrency must be > 0");
+            }
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * Sets how many times a failed chunk is retried before the upload fails,
+         * defaults to {@link #DEFAULT_MAX_RETRIES}.
+         *
+         * @return This Builder object to allow for chaining of calls.
+         */
+        public Builder setMaxRetries(int maxRetries) {
+            this.maxRetries = Math.max(maxRetries, 0);
+            return this;
+        }
+
+        /**
+         * Adds a header sent with every chunk, e.g. for authorization.
+         *
+         * @return This Builder object to allow for chaining of calls.
+         */
+        public Builder addHeader(@NonNull String name, @NonNull String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * Creates a MediaUploader with the arguments supplied to this builder.
+         */
+        public MediaUploader build() {
+            return new MediaUploader(context, endpoint, chunkSize, maxConcurrency, maxRetries,
+                    new LinkedHashMap<>(headers));
+        }
+
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.marchinram.rxgallery;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.StatFs;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.IOException;
+
+final class MediaUtils {
+
+    static final long UNKNOWN = -1;
+
+    /**
+     * DocumentsContract.Document.COLUMN_LAST_MODIFIED, which is only available from KITKAT (19).
+     */
+    private static final String COLUMN_DOCUMENT_LAST_MODIFIED = "last_modified";
+
+    private MediaUtils() {
+    }
+
+    /**
+     * Returns the size in bytes of the content at a Uri, or {@link #UNKNOWN} if it cannot be determined.
+     */
+    static long querySize(ContentResolver contentResolver, Uri uri) {
+        long size = queryLong(contentResolver, uri, OpenableColumns.SIZE);
+        if (size >= 0) {
+            return size;
+        }
+        AssetFileDescriptor afd = null;
+        try {
+            afd = contentResolver.openAssetFileDescriptor(uri, "r");
+            if (afd != null && afd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                return afd.getLength();
+            }
+        } catch (IOException | SecurityException ignored) {
+        } finally {
+            closeQuietly(afd);
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Returns when the content at a Uri was last modified in milliseconds, or {@link #UNKNOWN}.
+     */
+    static long queryLastModified(ContentResolver contentResolver, Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            long lastModified = new File(uri.getPath()).lastModified();
+            return lastModified > 0 ? lastModified : UNKNOWN;
+        }
+        long dateModified = queryLong(contentResolver, uri, MediaStore.MediaColumns.DATE_MODIFIED);
+        if (dateModified >= 0) {
+            // MediaStore stores seconds
+            return dateModified * 1000;
+        }
+        return queryLong(contentResolver, uri, COLUMN_DOCUMENT_LAST_MODIFIED);
+    }
+
+    /**
+     * Returns the duration of a video in milliseconds, or {@link #UNKNOWN} if it cannot be determined.
+     * Falls back to reading the video's metadata for Uris which aren't from the MediaStore,
+     * such as FileProvider Uris, so it must not be called on the main thread.
+     */
+    static long queryDuration(Context context, Uri uri) {
+        long duration = queryLong(context.getContentResolver(), uri, MediaStore.Video.VideoColumns.DURATION);
+        if (duration >= 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1) {
+            return duration;
+        }
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(context, uri);
+            String value = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            if (value != null) {
+                return Long.parseLong(value);
+            }
+        } catch (RuntimeException ignored) {
+            // Not a video the retriever can read, or the duration isn't a number
+        } finally {
+            retriever.release();
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Returns a long column for a Uri, or {@link #UNKNOWN} if the provider doesn't have it.
+     */
+    static long queryLong(ContentResolver contentResolver, Uri uri, String column) {
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(uri, new String[]{column}, null, null, null);
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (IllegalArgumentException | SecurityException ignored) {
+            // Provider doesn't support the column
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Returns a String column for a Uri, or null if the provider doesn't have it.
+     */
+    static String queryString(ContentResolver contentResolver, Uri uri, String column) {
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(uri, new String[]{column}, null, null, null);
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getString(0);
+            }
+        } catch (IllegalArgumentException | SecurityException ignored) {
+            // Provider doesn't support the column
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of bytes available on the file system containing a path.
+     */
+    @SuppressWarnings("deprecation")
+    static long availableBytes(File path) {
+        StatFs statFs = new StatFs(path.getPath());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return statFs.getAvailableBytes();
+        }
+        return (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+    }
+
+    static void closeQuietly(AssetFileDescriptor afd) {
+        if (afd != null) {
+            try {
+                afd.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
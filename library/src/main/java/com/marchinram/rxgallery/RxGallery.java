@@ -13,19 +13,28 @@ import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import io.reactivex.Maybe;
 import io.reactivex.MaybeEmitter;
 import io.reactivex.MaybeOnSubscribe;
 import io.reactivex.android.MainThreadDisposable;
+import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.functions.Function;
 
 @SuppressWarnings({"unused", "WeakerAccess", "SameParameterValue"})
 public final class RxGallery {
 
+    /**
+     * Request ids are random rather than counted from 0, since an RxGalleryActivity can outlive the process
+     * which started it and a new process must not hand out its id again.
+     */
+    private static final SecureRandom REQUEST_IDS = new SecureRandom();
+
     public enum Source {
         GALLERY,
         PHOTO_CAPTURE,
@@ -49,6 +58,21 @@ public final class RxGallery {
         }
     }
 
+    public enum VideoQuality {
+        LOW(0),
+        HIGH(1);
+
+        private final int extraValue;
+
+        VideoQuality(int extraValue) {
+            this.extraValue = extraValue;
+        }
+
+        int getExtraValue() {
+            return extraValue;
+        }
+    }
+
     /**
      * Returns a Maybe for a gallery display.
      *
@@ -149,26 +173,71 @@ public final class RxGallery {
      * @param context A Context to open gallery or take photo/videos from.
      * @param request A Request to use.
      * @return A Maybe which calls onSuccess with the Uris of selected gallery items
-     * or captured photos/videos.
+     * or captured photos/videos. If the Request has a timeout and it elapses first the Maybe
+     * calls onError with a {@link java.util.concurrent.TimeoutException} on the main thread.
      */
     public static Maybe<List<Uri>> request(@NonNull final Context context, @NonNull final Request request) {
+        return result(context, request).map(new Function<Intent, List<Uri>>() {
+            @Override
+            public List<Uri> apply(@io.reactivex.annotations.NonNull Intent intent) throws Exception {
+                return intent.getParcelableArrayListExtra(RxGalleryActivity.EXTRA_URIS);
+            }
+        });
+    }
+
+    /**
+     * Returns a Maybe for a video capture request which also reports the actual size and duration
+     * of the captured video.
+     *
+     * @param context A Context to take the video from.
+     * @param request A Request with {@link Source#VIDEO_CAPTURE}.
+     * @return A Maybe which calls onSuccess with the captured video. If the video exceeds the limits of the
+     * Request the Maybe calls onError with a {@link VideoLimitExceededException}.
+     */
+    public static Maybe<CapturedVideo> capturedVideo(@NonNull final Context context, @NonNull final Request request) {
+        if (request.getSource() != Source.VIDEO_CAPTURE) {
+            throw new IllegalArgumentException("Request source must be VIDEO_CAPTURE");
+        }
+        return result(context, request).map(new Function<Intent, CapturedVideo>() {
+            @Override
+            public CapturedVideo apply(@io.reactivex.annotations.NonNull Intent intent) throws Exception {
+                List<Uri> uris = intent.getParcelableArrayListExtra(RxGalleryActivity.EXTRA_URIS);
+                return new CapturedVideo(uris.get(0),
+                        intent.getLongExtra(RxGalleryActivity.EXTRA_VIDEO_SIZE, -1),
+                        intent.getLongExtra(RxGalleryActivity.EXTRA_VIDEO_DURATION, -1));
+            }
+        });
+    }
+
+    /**
+     * Returns a Maybe which calls onSuccess with the FINISHED_ACTION broadcast of a request with at least one Uri.
+     */
+    private static Maybe<Intent> result(@NonNull final Context context, @NonNull final Request request) {
         final Context appContext = context.getApplicationContext();
 
-        return Maybe.create(new MaybeOnSubscribe<List<Uri>>() {
+        Maybe<Intent> maybe = Maybe.create(new MaybeOnSubscribe<Intent>() {
             @Override
-            public void subscribe(@io.reactivex.annotations.NonNull final MaybeEmitter<List<Uri>> e) throws Exception {
+            public void subscribe(@io.reactivex.annotations.NonNull final MaybeEmitter<Intent> e) throws Exception {
+                // Each subscription gets its own id so broadcasts only reach its own RxGalleryActivity
+                final long requestId = newRequestId();
+
                 final BroadcastReceiver receiver = new BroadcastReceiver() {
                     @Override
                     public void onReceive(Context context, Intent intent) {
+                        if (intent.getLongExtra(RxGalleryActivity.EXTRA_REQUEST_ID, -1) != requestId) {
+                            return;
+                        }
                         if (!e.isDisposed()) {
                             if (intent.hasExtra(RxGalleryActivity.EXTRA_ERROR_NO_ACTIVITY)) {
                                 e.onError(new ActivityNotFoundException("No activity found to handle request"));
                             } else if (intent.hasExtra(RxGalleryActivity.EXTRA_ERROR_SECURITY)) {
                                 e.onError((Throwable) intent.getSerializableExtra(RxGalleryActivity.EXTRA_ERROR_SECURITY));
+                            } else if (intent.hasExtra(RxGalleryActivity.EXTRA_ERROR_VIDEO_LIMIT)) {
+                                e.onError((Throwable) intent.getSerializableExtra(RxGalleryActivity.EXTRA_ERROR_VIDEO_LIMIT));
                             } else if (intent.hasExtra(RxGalleryActivity.EXTRA_URIS)) {
                                 List<Uri> uris = intent.getParcelableArrayListExtra(RxGalleryActivity.EXTRA_URIS);
                                 if (uris != null && uris.size() > 0) {
-                                    e.onSuccess(uris);
+                                    e.onSuccess(intent);
                                 } else {
                                     e.onComplete();
                                 }
@@ -184,15 +253,32 @@ public final class RxGallery {
                     @Override
                     protected void onDispose() {
                         appContext.unregisterReceiver(receiver);
-                        appContext.sendBroadcast(new Intent(RxGalleryActivity.DISPOSED_ACTION));
+                        Intent intent = new Intent(RxGalleryActivity.DISPOSED_ACTION);
+                        intent.putExtra(RxGalleryActivity.EXTRA_REQUEST_ID, requestId);
+                        appContext.sendBroadcast(intent);
                     }
                 });
 
                 Intent intent = new Intent(appContext, RxGalleryActivity.class);
                 intent.putExtra(RxGalleryActivity.EXTRA_REQUEST, request);
+                intent.putExtra(RxGalleryActivity.EXTRA_REQUEST_ID, requestId);
                 context.startActivity(intent);
             }
         });
+
+        if (request.getTimeoutMillis() > 0) {
+            // Timed on the main thread, where results and errors are always delivered
+            maybe = maybe.timeout(request.getTimeoutMillis(), TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread());
+        }
+        return maybe;
+    }
+
+    private static long newRequestId() {
+        long requestId;
+        do {
+            requestId = REQUEST_IDS.nextLong();
+        } while (requestId == -1);
+        return requestId;
     }
 
     public static final class Request implements Parcelable {
@@ -205,11 +291,28 @@ public final class RxGallery {
 
         private final Uri outputUri;
 
-        private Request(Source source, List<MimeType> mimeTypes, boolean multiSelectEnabled, Uri outputUri) {
+        private final long timeoutMillis;
+
+        private final long videoSizeLimit;
+
+        private final int videoDurationLimit;
+
+        private final VideoQuality videoQuality;
+
+        private final boolean adaptiveVideoLimitsEnabled;
+
+        private Request(Source source, List<MimeType> mimeTypes, boolean multiSelectEnabled, Uri outputUri,
+                        long timeoutMillis, long videoSizeLimit, int videoDurationLimit,
+                        VideoQuality videoQuality, boolean adaptiveVideoLimitsEnabled) {
             this.source = source;
             this.mimeTypes = mimeTypes;
             this.multiSelectEnabled = multiSelectEnabled;
             this.outputUri = outputUri;
+            this.timeoutMillis = timeoutMillis;
+            this.videoSizeLimit = videoSizeLimit;
+            this.videoDurationLimit = videoDurationLimit;
+            this.videoQuality = videoQuality;
+            this.adaptiveVideoLimitsEnabled = adaptiveVideoLimitsEnabled;
         }
 
         private Request(Parcel in) {
@@ -222,6 +325,12 @@ public final class RxGallery {
             multiSelectEnabled = in.readInt() == 1;
             String uriString = in.readString();
             outputUri = uriString != null ? Uri.parse(uriString) : null;
+            timeoutMillis = in.readLong();
+            videoSizeLimit = in.readLong();
+            videoDurationLimit = in.readInt();
+            int videoQualityOrdinal = in.readInt();
+            videoQuality = videoQualityOrdinal >= 0 ? VideoQuality.values()[videoQualityOrdinal] : null;
+            adaptiveVideoLimitsEnabled = in.readInt() == 1;
         }
 
         Source getSource() {
@@ -240,6 +349,26 @@ public final class RxGallery {
             return outputUri;
         }
 
+        long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        long getVideoSizeLimit() {
+            return videoSizeLimit;
+        }
+
+        int getVideoDurationLimit() {
+            return videoDurationLimit;
+        }
+
+        VideoQuality getVideoQuality() {
+            return videoQuality;
+        }
+
+        boolean isAdaptiveVideoLimitsEnabled() {
+            return adaptiveVideoLimitsEnabled;
+        }
+
         @Override
         public void writeToParcel(Parcel dest, int flags) {
             dest.writeInt(source.ordinal());
@@ -249,6 +378,11 @@ public final class RxGallery {
             }
             dest.writeInt(multiSelectEnabled ? 1 : 0);
             dest.writeString(outputUri != null ? outputUri.toString() : null);
+            dest.writeLong(timeoutMillis);
+            dest.writeLong(videoSizeLimit);
+            dest.writeInt(videoDurationLimit);
+            dest.writeInt(videoQuality != null ? videoQuality.ordinal() : -1);
+            dest.writeInt(adaptiveVideoLimitsEnabled ? 1 : 0);
         }
 
         @Override
@@ -276,7 +410,12 @@ public final class RxGallery {
                 return (getSource().equals(that.getSource()))
                         && (getMimeTypes().equals(that.getMimeTypes()))
                         && (isMultiSelectEnabled() == that.isMultiSelectEnabled())
-                        && ((getOutputUri() == null) ? (that.getOutputUri() == null) : getOutputUri().equals(that.getOutputUri()));
+                        && ((getOutputUri() == null) ? (that.getOutputUri() == null) : getOutputUri().equals(that.getOutputUri()))
+                        && (getTimeoutMillis() == that.getTimeoutMillis())
+                        && (getVideoSizeLimit() == that.getVideoSizeLimit())
+                        && (getVideoDurationLimit() == that.getVideoDurationLimit())
+                        && (getVideoQuality() == that.getVideoQuality())
+                        && (isAdaptiveVideoLimitsEnabled() == that.isAdaptiveVideoLimitsEnabled());
             }
             return false;
         }
@@ -292,6 +431,16 @@ public final class RxGallery {
             h ^= isMultiSelectEnabled() ? 1 : 0;
             h *= 1000003;
             h ^= (getOutputUri() == null) ? 0 : getOutputUri().hashCode();
+            h *= 1000003;
+            h ^= (int) ((getTimeoutMillis() >>> 32) ^ getTimeoutMillis());
+            h *= 1000003;
+            h ^= (int) ((getVideoSizeLimit() >>> 32) ^ getVideoSizeLimit());
+            h *= 1000003;
+            h ^= getVideoDurationLimit();
+            h *= 1000003;
+            h ^= (getVideoQuality() == null) ? 0 : getVideoQuality().hashCode();
+            h *= 1000003;
+            h ^= isAdaptiveVideoLimitsEnabled() ? 1 : 0;
             return h;
         }
 
@@ -305,6 +454,16 @@ public final class RxGallery {
 
             private Uri outputUri;
 
+            private long timeoutMillis;
+
+            private long videoSizeLimit;
+
+            private int videoDurationLimit;
+
+            private VideoQuality videoQuality;
+
+            private boolean adaptiveVideoLimitsEnabled;
+
             /**
              * Creates a {@link Builder} for a {@link Request}.
              */
@@ -373,11 +532,78 @@ public final class RxGallery {
                 return this;
             }
 
+            /**
+             * Sets how long the request may take before it is abandoned.
+             * <p>
+             * When the timeout elapses the Maybe calls onError with a
+             * {@link java.util.concurrent.TimeoutException}, the gallery/photo/video activity is finished
+             * and any MediaStore row created for a photo request is deleted.
+             * A timeout <= 0 means no timeout, which is the default.
+             *
+             * @return This Builder object to allow for chaining of calls.
+             */
+            public Builder setTimeout(long timeout, @NonNull TimeUnit unit) {
+                this.timeoutMillis = timeout > 0 ? unit.toMillis(timeout) : 0;
+                return this;
+            }
+
+            /**
+             * Sets the maximum size in bytes of a video for video requests.
+             * <p>
+             * A limit <= 0 means no limit, which is the default.
+             * The limit is not enforced if the size of the captured video can't be determined.
+             *
+             * @return This Builder object to allow for chaining of calls.
+             */
+            public Builder setVideoSizeLimit(long videoSizeLimit) {
+                this.videoSizeLimit = Math.max(videoSizeLimit, 0);
+                return this;
+            }
+
+            /**
+             * Sets the maximum duration in seconds of a video for video requests.
+             * <p>
+             * A limit <= 0 means no limit, which is the default.
+             * The limit is not enforced if the duration of the captured video can't be determined.
+             *
+             * @return This Builder object to allow for chaining of calls.
+             */
+            public Builder setVideoDurationLimit(int videoDurationLimit) {
+                this.videoDurationLimit = Math.max(videoDurationLimit, 0);
+                return this;
+            }
+
+            /**
+             * Sets the {@link VideoQuality} for video requests.
+             * <p>
+             * If none is supplied then the camera app's default quality is used.
+             *
+             * @return This Builder object to allow for chaining of calls.
+             */
+            public Builder setVideoQuality(@Nullable VideoQuality videoQuality) {
+                this.videoQuality = videoQuality;
+                return this;
+            }
+
+            /**
+             * Sets whether video limits are adapted to the free external storage for video requests.
+             * <p>
+             * When enabled the size limit is lowered to a fraction of the free space and
+             * {@link VideoQuality#LOW} is used when free space is low and no quality was set.
+             *
+             * @return This Builder object to allow for chaining of calls.
+             */
+            public Builder setAdaptiveVideoLimitsEnabled(boolean adaptiveVideoLimitsEnabled) {
+                this.adaptiveVideoLimitsEnabled = adaptiveVideoLimitsEnabled;
+                return this;
+            }
+
             /**
              * Creates a Request with the arguments supplied to this builder.
              */
             public Request build() {
-                return new Request(source, mimeTypes, multiSelectEnabled, outputUri);
+                return new Request(source, mimeTypes, multiSelectEnabled, outputUri, timeoutMillis,
+                        videoSizeLimit, videoDurationLimit, videoQuality, adaptiveVideoLimitsEnabled);
             }
 
         }
@@ -11,6 +11,9 @@ import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Pair;
 
@@ -18,6 +21,13 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.schedulers.Schedulers;
 
 public final class RxGalleryActivity extends Activity {
 
@@ -27,24 +37,83 @@ public final class RxGalleryActivity extends Activity {
 
     static final String EXTRA_REQUEST = "extraRequest";
 
+    static final String EXTRA_REQUEST_ID = "extraRequestId";
+
     static final String EXTRA_URIS = "extraUris";
 
+    static final String EXTRA_VIDEO_SIZE = "extraVideoSize";
+
+    static final String EXTRA_VIDEO_DURATION = "extraVideoDuration";
+
     static final String EXTRA_ERROR_NO_ACTIVITY = "extraErrorNoActivity";
 
     static final String EXTRA_ERROR_SECURITY = "extraErrorSecurity";
 
+    static final String EXTRA_ERROR_VIDEO_LIMIT = "extraErrorVideoLimit";
+
     private static final int RC_GALLERY = 1000;
 
     private static final int RC_TAKE_PHOTO = 1001;
 
     private static final int RC_TAKE_VIDEO = 1002;
 
+    private static final String STATE_DEADLINE = "stateDeadline";
+
+    private static final String STATE_OUTPUT_URI = "stateOutputUri";
+
+    private static final String STATE_OUTPUT_URI_CREATED = "stateOutputUriCreated";
+
+    private static final String STATE_VIDEO_SIZE_LIMIT = "stateVideoSizeLimit";
+
+    private static final String STATE_VIDEO_DURATION_LIMIT = "stateVideoDurationLimit";
+
+    /**
+     * Fraction of free storage a video may use when adaptive video limits are enabled.
+     */
+    private static final long ADAPTIVE_FREE_SPACE_DIVISOR = 2;
+
+    /**
+     * Free storage below which low quality video is used when adaptive video limits are enabled.
+     */
+    private static final long ADAPTIVE_LOW_QUALITY_FREE_BYTES = 1024L * 1024 * 1024;
+
+    /**
+     * Slack allowed over the duration limit, since camera apps stop on a frame boundary.
+     */
+    private static final long DURATION_LIMIT_TOLERANCE_MILLIS = 1000;
+
+    private long requestId;
+
+    /**
+     * {@link SystemClock#elapsedRealtime()} at which the request times out, or 0 for no timeout.
+     */
+    private long deadline;
+
     private Uri outputUri;
 
+    private boolean outputUriCreated;
+
+    private long videoSizeLimit;
+
+    private int videoDurationLimit;
+
+    private Disposable videoMeasureDisposable;
+
+    private final Handler timeoutHandler = new Handler();
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            abandon();
+        }
+    };
+
     private final BroadcastReceiver disposedReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            finishAll();
+            if (intent.getLongExtra(EXTRA_REQUEST_ID, -1) == requestId) {
+                abandon();
+            }
         }
     };
 
@@ -52,15 +121,33 @@ public final class RxGalleryActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        RxGallery.Request request = getIntent().getParcelableExtra(EXTRA_REQUEST);
+        requestId = getIntent().getLongExtra(EXTRA_REQUEST_ID, -1);
+
         registerReceiver(disposedReceiver, new IntentFilter(DISPOSED_ACTION));
 
-        RxGallery.Request request = getIntent().getParcelableExtra(EXTRA_REQUEST);
+        if (savedInstanceState != null) {
+            // Recreated while the gallery/camera is open, its result is still delivered to this instance
+            deadline = savedInstanceState.getLong(STATE_DEADLINE);
+            outputUri = savedInstanceState.getParcelable(STATE_OUTPUT_URI);
+            outputUriCreated = savedInstanceState.getBoolean(STATE_OUTPUT_URI_CREATED);
+            videoSizeLimit = savedInstanceState.getLong(STATE_VIDEO_SIZE_LIMIT);
+            videoDurationLimit = savedInstanceState.getInt(STATE_VIDEO_DURATION_LIMIT);
+            postTimeout();
+            return;
+        }
+
+        if (request.getTimeoutMillis() > 0) {
+            deadline = SystemClock.elapsedRealtime() + request.getTimeoutMillis();
+        }
+        postTimeout();
+
         switch (request.getSource()) {
             case GALLERY:
                 handleIntentRequestPair(getGalleryIntentRequestPair(request));
                 break;
             case VIDEO_CAPTURE:
-                handleIntentRequestPair(getVideoCaptureIntentRequestPair());
+                handleIntentRequestPair(getVideoCaptureIntentRequestPair(request));
                 break;
             case PHOTO_CAPTURE:
                 try {
@@ -72,15 +159,31 @@ public final class RxGalleryActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putLong(STATE_DEADLINE, deadline);
+        outState.putParcelable(STATE_OUTPUT_URI, outputUri);
+        outState.putBoolean(STATE_OUTPUT_URI_CREATED, outputUriCreated);
+        outState.putLong(STATE_VIDEO_SIZE_LIMIT, videoSizeLimit);
+        outState.putInt(STATE_VIDEO_DURATION_LIMIT, videoDurationLimit);
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        timeoutHandler.removeCallbacks(timeoutRunnable);
         unregisterReceiver(disposedReceiver);
+        if (videoMeasureDisposable != null) {
+            videoMeasureDisposable.dispose();
+        }
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        Intent intent = new Intent(FINISHED_ACTION);
+        timeoutHandler.removeCallbacks(timeoutRunnable);
+
+        Intent intent = newFinishedIntent();
         ArrayList<Uri> uris = new ArrayList<>();
 
         if (resultCode == Activity.RESULT_OK) {
@@ -89,14 +192,19 @@ public final class RxGalleryActivity extends Activity {
                     uris = handleGallery(data);
                     break;
                 case RC_TAKE_VIDEO:
-                    uris.add(data.getData());
+                    if (data != null && data.getData() != null) {
+                        measureVideo(data.getData());
+                        return;
+                    }
                     break;
                 case RC_TAKE_PHOTO:
                     uris.add(outputUri);
+                    outputUriCreated = false;
                     break;
             }
-        } else if (requestCode == RC_TAKE_PHOTO) {
+        } else if (requestCode == RC_TAKE_PHOTO && outputUri != null) {
             getContentResolver().delete(outputUri, null, null);
+            outputUriCreated = false;
         }
 
         intent.putParcelableArrayListExtra(EXTRA_URIS, uris);
@@ -105,6 +213,15 @@ public final class RxGalleryActivity extends Activity {
         finishAll();
     }
 
+    /**
+     * Posts the timeout for the time remaining until the deadline, so recreating doesn't restart it.
+     */
+    private void postTimeout() {
+        if (deadline > 0) {
+            timeoutHandler.postDelayed(timeoutRunnable, Math.max(deadline - SystemClock.elapsedRealtime(), 0));
+        }
+    }
+
     private void finishAll() {
         finishActivity(RC_GALLERY);
         finishActivity(RC_TAKE_PHOTO);
@@ -112,17 +229,54 @@ public final class RxGalleryActivity extends Activity {
         finish();
     }
 
-    private void sendErrorNoActivity() {
+    /**
+     * Called when the subscription was disposed, the request's timeout elapsed or the request failed,
+     * deletes the MediaStore row created for a photo request since no photo will be delivered.
+     */
+    private void abandon() {
+        timeoutHandler.removeCallbacks(timeoutRunnable);
+        if (outputUriCreated) {
+            getContentResolver().delete(outputUri, null, null);
+            outputUriCreated = false;
+        }
+        finishAll();
+    }
+
+    private Intent newFinishedIntent() {
         Intent intent = new Intent(FINISHED_ACTION);
+        intent.putExtra(EXTRA_REQUEST_ID, requestId);
+        return intent;
+    }
+
+    private void sendErrorNoActivity() {
+        Intent intent = newFinishedIntent();
         intent.putExtra(EXTRA_ERROR_NO_ACTIVITY, true);
         sendBroadcast(intent);
-        finishAll();
+        abandon();
     }
 
     private void sendErrorSecurity(SecurityException e) {
-        Intent intent = new Intent(FINISHED_ACTION);
+        Intent intent = newFinishedIntent();
         intent.putExtra(EXTRA_ERROR_SECURITY, e);
         sendBroadcast(intent);
+        abandon();
+    }
+
+    private void sendErrorVideoLimit(VideoLimitExceededException e) {
+        Intent intent = newFinishedIntent();
+        intent.putExtra(EXTRA_ERROR_VIDEO_LIMIT, e);
+        sendBroadcast(intent);
+        abandon();
+    }
+
+    private void sendCapturedVideo(CapturedVideo video) {
+        Intent intent = newFinishedIntent();
+        ArrayList<Uri> uris = new ArrayList<>();
+        uris.add(video.getUri());
+        intent.putParcelableArrayListExtra(EXTRA_URIS, uris);
+        intent.putExtra(EXTRA_VIDEO_SIZE, video.getSizeBytes());
+        intent.putExtra(EXTRA_VIDEO_DURATION, video.getDurationMillis());
+        sendBroadcast(intent);
         finishAll();
     }
 
@@ -165,17 +319,77 @@ public final class RxGalleryActivity extends Activity {
             outputUri = request.getOutputUri();
         } else {
             outputUri = createImage();
+            outputUriCreated = outputUri != null;
         }
         intent.putExtra(MediaStore.EXTRA_OUTPUT, outputUri);
 
         return new Pair<>(intent, RC_TAKE_PHOTO);
     }
 
-    private Pair<Intent, Integer> getVideoCaptureIntentRequestPair() {
+    private Pair<Intent, Integer> getVideoCaptureIntentRequestPair(RxGallery.Request request) {
         Intent intent = new Intent(MediaStore.ACTION_VIDEO_CAPTURE);
+
+        videoSizeLimit = request.getVideoSizeLimit();
+        videoDurationLimit = request.getVideoDurationLimit();
+        RxGallery.VideoQuality videoQuality = request.getVideoQuality();
+
+        if (request.isAdaptiveVideoLimitsEnabled()
+                && Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            long freeBytes = MediaUtils.availableBytes(Environment.getExternalStorageDirectory());
+            long adaptiveSizeLimit = Math.max(freeBytes / ADAPTIVE_FREE_SPACE_DIVISOR, 1);
+            videoSizeLimit = videoSizeLimit > 0 ? Math.min(videoSizeLimit, adaptiveSizeLimit) : adaptiveSizeLimit;
+            if (videoQuality == null && freeBytes < ADAPTIVE_LOW_QUALITY_FREE_BYTES) {
+                videoQuality = RxGallery.VideoQuality.LOW;
+            }
+        }
+
+        if (videoSizeLimit > 0) {
+            intent.putExtra(MediaStore.EXTRA_SIZE_LIMIT, videoSizeLimit);
+        }
+        if (videoDurationLimit > 0) {
+            intent.putExtra(MediaStore.EXTRA_DURATION_LIMIT, videoDurationLimit);
+        }
+        if (videoQuality != null) {
+            intent.putExtra(MediaStore.EXTRA_VIDEO_QUALITY, videoQuality.getExtraValue());
+        }
+
         return new Pair<>(intent, RC_TAKE_VIDEO);
     }
 
+    /**
+     * Measures the actual size and duration of a captured video off the main thread, then delivers it
+     * or fails if it exceeds the limits it was captured with, since camera apps are free to ignore the limit extras.
+     * A limit is not enforced if the size or duration it applies to can't be determined.
+     */
+    private void measureVideo(final Uri videoUri) {
+        final Context context = getApplicationContext();
+        videoMeasureDisposable = Single.fromCallable(new Callable<CapturedVideo>() {
+            @Override
+            public CapturedVideo call() throws Exception {
+                return new CapturedVideo(videoUri, MediaUtils.querySize(context.getContentResolver(), videoUri),
+                        MediaUtils.queryDuration(context, videoUri));
+            }
+        }).subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread()).subscribe(new Consumer<CapturedVideo>() {
+            @Override
+            public void accept(CapturedVideo video) throws Exception {
+                boolean sizeExceeded = videoSizeLimit > 0 && video.getSizeBytes() > videoSizeLimit;
+                boolean durationExceeded = videoDurationLimit > 0
+                        && video.getDurationMillis() > videoDurationLimit * 1000L + DURATION_LIMIT_TOLERANCE_MILLIS;
+                if (sizeExceeded || durationExceeded) {
+                    sendErrorVideoLimit(new VideoLimitExceededException(video.getUri(), video.getSizeBytes(),
+                            video.getDurationMillis(), videoSizeLimit, videoDurationLimit));
+                } else {
+                    sendCapturedVideo(video);
+                }
+            }
+        }, new Consumer<Throwable>() {
+            @Override
+            public void accept(Throwable throwable) throws Exception {
+                sendCapturedVideo(new CapturedVideo(videoUri, MediaUtils.UNKNOWN, MediaUtils.UNKNOWN));
+            }
+        });
+    }
+
     private Uri createImage() throws SecurityException {
         ContentResolver contentResolver = getContentResolver();
         ContentValues cv = new ContentValues();
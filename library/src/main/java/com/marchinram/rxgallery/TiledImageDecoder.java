@@ -0,0 +1,548 @@
+package com.marchinram.rxgallery;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Decodes very large images, such as those returned by {@link RxGallery#gallery(android.app.Activity)},
+ * a tile at a time with {@link BitmapRegionDecoder} so memory use does not depend on the image resolution.
+ * <p>
+ * Tiles are decoded on a shared background scheduler with a bounded number of threads. The decodes of one image
+ * are serialized, since a BitmapRegionDecoder isn't safe to use from several threads before KitKat and locks
+ * itself from then on, so the threads only decode different images in parallel.
+ * The tiles of the latest visible region are pinned in the cache, a bounded number of other
+ * recently used tiles are kept too and the bitmaps of evicted tiles are reused for new tiles.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+@RequiresApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+public final class TiledImageDecoder {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    public static final int DEFAULT_EXTRA_CACHED_TILES = 16;
+
+    private static final int DECODE_THREADS = 2;
+
+    private static final int MAX_SAMPLE_SIZE = 1 << 16;
+
+    private static final Scheduler DECODE_SCHEDULER = Schedulers.from(
+            Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "RxGalleryTileDecoder-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+
+    private final BitmapRegionDecoder decoder;
+
+    private final ParcelFileDescriptor pfd;
+
+    private final int width;
+
+    private final int height;
+
+    private final int tileSize;
+
+    private final TileCache cache;
+
+    private final BitmapPool pool;
+
+    /**
+     * Guards {@link #decoder} and {@link #recycled}.
+     */
+    private final Object lock = new Object();
+
+    private boolean recycled;
+
+    private TiledImageDecoder(BitmapRegionDecoder decoder, ParcelFileDescriptor pfd, int tileSize, int extraCachedTiles) {
+        this.decoder = decoder;
+        this.pfd = pfd;
+        this.width = decoder.getWidth();
+        this.height = decoder.getHeight();
+        this.tileSize = tileSize;
+        this.pool = new BitmapPool(Math.max(extraCachedTiles / 4, DECODE_THREADS));
+        this.cache = new TileCache(extraCachedTiles, pool);
+    }
+
+    /**
+     * Returns a Single which opens a decoder for an image.
+     *
+     * @param context A Context to resolve the Uri with.
+     * @param uri     The Uri of the image.
+     * @return A Single which calls onSuccess with the decoder, which must be {@link #recycle() recycled} when done.
+     */
+    public static Single<TiledImageDecoder> open(@NonNull Context context, @NonNull Uri uri) {
+        return open(context, uri, DEFAULT_TILE_SIZE, DEFAULT_EXTRA_CACHED_TILES);
+    }
+
+    /**
+     * Returns a Single which opens a decoder for an image.
+     *
+     * @param context        A Context to resolve the Uri with.
+     * @param uri            The Uri of the image.
+     * @param tileSize         The width and height in pixels of decoded tiles.
+     * @param extraCachedTiles The number of recently used tiles to keep in addition to the visible tiles,
+     *                         which are always kept.
+     * @return A Single which calls onSuccess with the decoder, which must be {@link #recycle() recycled} when done.
+     */
+    public static Single<TiledImageDecoder> open(@NonNull Context context, @NonNull final Uri uri,
+                                                 final int tileSize, final int extraCachedTiles) {
+        if (tileSize <= 0 || extraCachedTiles < 0) {
+            throw new IllegalArgumentException("tileSize must be > 0 and extraCachedTiles must be >= 0");
+        }
+        final ContentResolver contentResolver = context.getApplicationContext().getContentResolver();
+
+        return Single.fromCallable(new Callable<TiledImageDecoder>() {
+            @Override
+            public TiledImageDecoder call() throws Exception {
+                ParcelFileDescriptor pfd = null;
+                try {
+                    pfd = contentResolver.openFileDescriptor(uri, "r");
+                } catch (FileNotFoundException ignored) {
+                    // Not backed by a file, fall back to a stream below
+                }
+                if (pfd != null) {
+                    try {
+                        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(pfd.getFileDescriptor(), false);
+                        return new TiledImageDecoder(decoder, pfd, tileSize, extraCachedTiles);
+                    } catch (IOException e) {
+                        pfd.close();
+                        throw e;
+                    }
+                }
+                InputStream is = contentResolver.openInputStream(uri);
+                if (is == null) {
+                    throw new FileNotFoundException("Unable to open " + uri);
+                }
+                try {
+                    return new TiledImageDecoder(BitmapRegionDecoder.newInstance(is, false), null, tileSize, extraCachedTiles);
+                } finally {
+                    is.close();
+                }
+            }
+        }).subscribeOn(DECODE_SCHEDULER);
+    }
+
+    /**
+     * Returns the sample size to decode at for a scale, the largest power of 2 which is <= 1 / scale.
+     *
+     * @param scale Displayed pixels per image pixel.
+     */
+    public static int sampleSizeForScale(float scale) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("scale must be > 0");
+        }
+        int sampleSize = 1;
+        while (sampleSize < MAX_SAMPLE_SIZE && sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns an Observable of the tiles covering a region of the image.
+     * <p>
+     * Cached tiles are emitted immediately, the rest are decoded on a background scheduler
+     * starting from the center of the region. Disposing cancels decodes which haven't started,
+     * so callers should dispose the previous Observable when the visible region changes.
+     * <p>
+     * Tile bitmaps are owned by this decoder. The tiles of the latest call are pinned and can't be evicted,
+     * tiles of earlier calls may be recycled or reused for other tiles once a newer call has been made,
+     * so only the tiles of the latest call should be drawn.
+     *
+     * @param visibleRect The visible region in image pixels.
+     * @param scale       Displayed pixels per image pixel, used to pick the sample size.
+     * @return An Observable which emits a Tile for each tile intersecting the visible region.
+     */
+    public Observable<Tile> tiles(@NonNull Rect visibleRect, float scale) {
+        final int sampleSize = sampleSizeForScale(scale);
+        final Rect region = new Rect(visibleRect);
+        if (!region.intersect(0, 0, getWidth(), getHeight())) {
+            return Observable.empty();
+        }
+
+        int sourceTileSize = tileSize * sampleSize;
+        List<TileKey> keys = tileKeys(region, tileSize, sampleSize);
+        cache.pin(keys);
+        final float centerCol = region.exactCenterX() / sourceTileSize - 0.5f;
+        final float centerRow = region.exactCenterY() / sourceTileSize - 0.5f;
+        Collections.sort(keys, new Comparator<TileKey>() {
+            @Override
+            public int compare(TileKey a, TileKey b) {
+                return Float.compare(a.distanceSquared(centerCol, centerRow), b.distanceSquared(centerCol, centerRow));
+            }
+        });
+
+        return Observable.fromIterable(keys).flatMap(new Function<TileKey, ObservableSource<Tile>>() {
+            @Override
+            public ObservableSource<Tile> apply(@io.reactivex.annotations.NonNull final TileKey key) throws Exception {
+                Tile tile = cache.get(key);
+                if (tile != null) {
+                    return Observable.just(tile);
+                }
+                return Observable.fromCallable(new Callable<Tile>() {
+                    @Override
+                    public Tile call() throws Exception {
+                        return decodeTile(key);
+                    }
+                }).subscribeOn(DECODE_SCHEDULER);
+            }
+        });
+    }
+
+    /**
+     * Returns the keys of the tiles covering a region, which must lie within the image.
+     */
+    static List<TileKey> tileKeys(Rect region, int tileSize, int sampleSize) {
+        int sourceTileSize = tileSize * sampleSize;
+        List<TileKey> keys = new ArrayList<>();
+        for (int row = region.top / sourceTileSize; row * sourceTileSize < region.bottom; row++) {
+            for (int col = region.left / sourceTileSize; col * sourceTileSize < region.right; col++) {
+                keys.add(new TileKey(sampleSize, col, row));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the region of an image a tile covers, which is smaller than a full tile at the right and bottom edges.
+     */
+    static Rect sourceRect(TileKey key, int tileSize, int width, int height) {
+        int sourceTileSize = tileSize * key.sampleSize;
+        int left = key.col * sourceTileSize;
+        int top = key.row * sourceTileSize;
+        return new Rect(left, top, Math.min(left + sourceTileSize, width), Math.min(top + sourceTileSize, height));
+    }
+
+    /**
+     * Releases the decoder and all cached and pooled bitmaps. Tiles must not be drawn afterwards.
+     * Waits for a decode in progress to finish.
+     */
+    public void recycle() {
+        synchronized (lock) {
+            if (recycled) {
+                return;
+            }
+            recycled = true;
+            cache.clear();
+            pool.clear();
+            decoder.recycle();
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public boolean isRecycled() {
+        synchronized (lock) {
+            return recycled;
+        }
+    }
+
+    private Tile decodeTile(TileKey key) throws IOException {
+        Tile cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        Rect sourceRect = sourceRect(key, tileSize, width, height);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = key.sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            options.inMutable = true;
+        }
+        synchronized (lock) {
+            if (recycled) {
+                throw new IOException("Decoder has been recycled");
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                options.inBitmap = pool.get();
+            }
+            Bitmap bitmap;
+            try {
+                bitmap = decoder.decodeRegion(sourceRect, options);
+            } catch (IllegalArgumentException e) {
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                // Pooled bitmap couldn't be reused, decode into a new one
+                options.inBitmap.recycle();
+                options.inBitmap = null;
+                bitmap = decoder.decodeRegion(sourceRect, options);
+            }
+            if (bitmap == null) {
+                throw new IOException("Unable to decode region " + sourceRect);
+            }
+            return cache.put(key, new Tile(sourceRect, key.sampleSize, bitmap, tileSize));
+        }
+    }
+
+    /**
+     * A decoded region of the image.
+     */
+    public static final class Tile {
+
+        private final Rect sourceRect;
+
+        private final int sampleSize;
+
+        private final Bitmap bitmap;
+
+        private final Rect bitmapRect;
+
+        private final int tileSize;
+
+        Tile(Rect sourceRect, int sampleSize, Bitmap bitmap, int tileSize) {
+            this.sourceRect = sourceRect;
+            this.sampleSize = sampleSize;
+            this.bitmap = bitmap;
+            this.tileSize = tileSize;
+            // A reused bitmap keeps its size, so edge tiles only fill its top left
+            this.bitmapRect = new Rect(0, 0,
+                    Math.min(bitmap.getWidth(), (sourceRect.width() + sampleSize - 1) / sampleSize),
+                    Math.min(bitmap.getHeight(), (sourceRect.height() + sampleSize - 1) / sampleSize));
+        }
+
+        /**
+         * Returns the region of the image this tile covers in image pixels.
+         */
+        public Rect getSourceRect() {
+            return new Rect(sourceRect);
+        }
+
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+
+        /**
+         * Returns the part of {@link #getBitmap()} holding this tile, to draw into {@link #getSourceRect()}.
+         */
+        public Rect getBitmapRect() {
+            return new Rect(bitmapRect);
+        }
+
+        private boolean isPoolable() {
+            return bitmap.isMutable() && bitmap.getWidth() == tileSize && bitmap.getHeight() == tileSize;
+        }
+
+    }
+
+    static final class TileKey {
+
+        private final int sampleSize;
+
+        private final int col;
+
+        private final int row;
+
+        TileKey(int sampleSize, int col, int row) {
+            this.sampleSize = sampleSize;
+            this.col = col;
+            this.row = row;
+        }
+
+        private float distanceSquared(float centerCol, float centerRow) {
+            float dx = col - centerCol;
+            float dy = row - centerRow;
+            return dx * dx + dy * dy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (o instanceof TileKey) {
+                TileKey that = (TileKey) o;
+                return sampleSize == that.sampleSize && col == that.col && row == that.row;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = 1;
+            h *= 1000003;
+            h ^= sampleSize;
+            h *= 1000003;
+            h ^= col;
+            h *= 1000003;
+            h ^= row;
+            return h;
+        }
+
+    }
+
+    /**
+     * Least recently used tiles, evicted tile bitmaps are handed to the {@link BitmapPool}.
+     * Pinned tiles are never evicted, so the cache holds the pinned tiles plus up to {@code extraSize} others.
+     */
+    static final class TileCache {
+
+        private final int extraSize;
+
+        private final BitmapPool pool;
+
+        private final LinkedHashMap<TileKey, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+
+        private Set<TileKey> pinned = Collections.emptySet();
+
+        TileCache(int extraSize, BitmapPool pool) {
+            this.extraSize = extraSize;
+            this.pool = pool;
+        }
+
+        /**
+         * Replaces the pinned tiles, the previously pinned ones become evictable.
+         */
+        synchronized void pin(Collection<TileKey> keys) {
+            pinned = new HashSet<>(keys);
+            evict();
+        }
+
+        synchronized Tile get(TileKey key) {
+            return tiles.get(key);
+        }
+
+        /**
+         * Adds a tile, returning the tile already cached for the key if another thread decoded it first.
+         */
+        synchronized Tile put(TileKey key, Tile tile) {
+            Tile existing = tiles.get(key);
+            if (existing != null) {
+                pool.put(tile);
+                return existing;
+            }
+            tiles.put(key, tile);
+            evict();
+            return tile;
+        }
+
+        private void evict() {
+            int maxSize = pinned.size() + extraSize;
+            Iterator<Map.Entry<TileKey, Tile>> iterator = tiles.entrySet().iterator();
+            while (tiles.size() > maxSize && iterator.hasNext()) {
+                Map.Entry<TileKey, Tile> entry = iterator.next();
+                if (!pinned.contains(entry.getKey())) {
+                    iterator.remove();
+                    pool.put(entry.getValue());
+                }
+            }
+        }
+
+        synchronized int size() {
+            return tiles.size();
+        }
+
+        synchronized void clear() {
+            for (Tile tile : tiles.values()) {
+                tile.getBitmap().recycle();
+            }
+            tiles.clear();
+            pinned = Collections.emptySet();
+        }
+
+    }
+
+    /**
+     * Full size tile bitmaps waiting to be decoded into again.
+     */
+    static final class BitmapPool {
+
+        private final int maxSize;
+
+        private final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>();
+
+        BitmapPool(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized Bitmap get() {
+            return bitmaps.poll();
+        }
+
+        synchronized void put(Tile tile) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                    && tile.isPoolable() && bitmaps.size() < maxSize) {
+                bitmaps.push(tile.getBitmap());
+            } else {
+                tile.getBitmap().recycle();
+            }
+        }
+
+        private synchronized void clear() {
+            for (Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+            bitmaps.clear();
+        }
+
+    }
+
+}
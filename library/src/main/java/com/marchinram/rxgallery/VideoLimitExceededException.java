@@ -0,0 +1,69 @@
+package com.marchinram.rxgallery;
+
+import android.net.Uri;
+
+/**
+ * Thrown when a captured video is larger or longer than the limits of its
+ * {@link RxGallery.Request}, which happens when the camera app ignores the limits it was given.
+ * The video is not deleted, {@link #getUri()} can be used to delete or trim it.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class VideoLimitExceededException extends RuntimeException {
+
+    private final String uriString;
+
+    private final long sizeBytes;
+
+    private final long durationMillis;
+
+    private final long sizeLimitBytes;
+
+    private final int durationLimitSeconds;
+
+    VideoLimitExceededException(Uri uri, long sizeBytes, long durationMillis,
+                                long sizeLimitBytes, int durationLimitSeconds) {
+        super("Captured video of " + sizeBytes + " bytes and " + durationMillis
+                + " ms exceeds limits of " + sizeLimitBytes + " bytes and " + durationLimitSeconds + " s");
+        this.uriString = uri.toString();
+        this.sizeBytes = sizeBytes;
+        this.durationMillis = durationMillis;
+        this.sizeLimitBytes = sizeLimitBytes;
+        this.durationLimitSeconds = durationLimitSeconds;
+    }
+
+    /**
+     * Returns the Uri of the captured video.
+     */
+    public Uri getUri() {
+        return Uri.parse(uriString);
+    }
+
+    /**
+     * Returns the actual size of the captured video in bytes, or -1 if unknown.
+     */
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Returns the actual duration of the captured video in milliseconds, or -1 if unknown.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Returns the size limit the video was captured with in bytes, or 0 if there was none.
+     */
+    public long getSizeLimitBytes() {
+        return sizeLimitBytes;
+    }
+
+    /**
+     * Returns the duration limit the video was captured with in seconds, or 0 if there was none.
+     */
+    public int getDurationLimitSeconds() {
+        return durationLimitSeconds;
+    }
+
+}
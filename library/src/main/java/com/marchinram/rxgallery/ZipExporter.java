@@ -0,0 +1,849 @@
+package com.marchinram.rxgallery;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.support.annotation.NonNull;
+import android.webkit.MimeTypeMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableEmitter;
+import io.reactivex.FlowableOnSubscribe;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Exports Uris, such as a multi-selection from {@link RxGallery#gallery(android.app.Activity, boolean)},
+ * into a ZIP archive written straight to a target Uri without staging any files on disk.
+ * <p>
+ * Already compressed media (JPEG, PNG, GIF, WebP, HEIF, video and most audio) is STORED rather than deflated.
+ * Every entry is read once: its CRC and sizes are computed while it is written and then patched into its
+ * header, which is why the target must be seekable. Small upcoming entries are read ahead into memory in
+ * parallel while the current entry is being written, at most {@code maxReadAhead + 2} entries of up to
+ * {@code bufferThreshold} bytes are held at once. Larger entries are streamed when they are written.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class ZipExporter {
+
+    public static final int DEFAULT_MAX_READ_AHEAD = 3;
+
+    public static final int DEFAULT_BUFFER_THRESHOLD = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long PROGRESS_INTERVAL_BYTES = 256 * 1024;
+
+    private final ContentResolver contentResolver;
+
+    private final int maxReadAhead;
+
+    private final int bufferThreshold;
+
+    private ZipExporter(Context context, int maxReadAhead, int bufferThreshold) {
+        this.contentResolver = context.getContentResolver();
+        this.maxReadAhead = maxReadAhead;
+        this.bufferThreshold = bufferThreshold;
+    }
+
+    /**
+     * Returns a Flowable which writes Uris into a ZIP archive.
+     *
+     * @param uris   The Uris to export, each becomes an entry named after its display name.
+     * @param target The Uri to write the archive to, e.g. from {@code ACTION_CREATE_DOCUMENT}.
+     *               It must be backed by a seekable file, i.e.
+     *               {@link ContentResolver#openFileDescriptor(Uri, String)} must succeed in "rw" mode.
+     * @return A Flowable which emits progress as entries are written and completes once the archive is finished.
+     * If it fails the target is left with a partial archive.
+     */
+    public Flowable<Progress> export(@NonNull final List<Uri> uris, @NonNull final Uri target) {
+        return Flowable.defer(new Callable<Flowable<Progress>>() {
+            @Override
+            public Flowable<Progress> call() throws Exception {
+                List<Entry> entries = new ArrayList<>();
+                Set<String> names = new HashSet<>();
+                long totalBytes = 0;
+                for (Uri uri : uris) {
+                    Entry entry = new Entry(uri, uniqueName(displayName(uri), names),
+                            isCompressed(uri), MediaUtils.querySize(contentResolver, uri));
+                    totalBytes = totalBytes >= 0 && entry.size >= 0 ? totalBytes + entry.size : MediaUtils.UNKNOWN;
+                    entries.add(entry);
+                }
+                return export(entries, totalBytes, target);
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    private Flowable<Progress> export(final List<Entry> entries, final long totalBytes, final Uri target) {
+        return Flowable.using(new Callable<ZipWriter>() {
+            @Override
+            public ZipWriter call() throws Exception {
+                ParcelFileDescriptor pfd = contentResolver.openFileDescriptor(target, "rw");
+                if (pfd == null) {
+                    throw new FileNotFoundException("Unable to open " + target);
+                }
+                return new ZipWriter(pfd);
+            }
+        }, new Function<ZipWriter, Flowable<Progress>>() {
+            @Override
+            public Flowable<Progress> apply(@io.reactivex.annotations.NonNull final ZipWriter zip) throws Exception {
+                final Progress.Counter counter = new Progress.Counter(totalBytes, entries.size());
+
+                Flowable<Entry> readAhead = Flowable.fromIterable(entries).concatMapEager(new Function<Entry, Flowable<Entry>>() {
+                    @Override
+                    public Flowable<Entry> apply(@io.reactivex.annotations.NonNull final Entry entry) throws Exception {
+                        return Flowable.fromCallable(new Callable<Entry>() {
+                            @Override
+                            public Entry call() throws Exception {
+                                return readAhead(entry);
+                            }
+                        }).subscribeOn(Schedulers.io());
+                    }
+                }, maxReadAhead, 1);
+
+                // A prefetch of 1 keeps a single read ahead entry queued behind the one being written
+                return readAhead.concatMap(new Function<Entry, Flowable<Progress>>() {
+                    @Override
+                    public Flowable<Progress> apply(@io.reactivex.annotations.NonNull final Entry entry) throws Exception {
+                        return Flowable.create(new FlowableOnSubscribe<Progress>() {
+                            @Override
+                            public void subscribe(@io.reactivex.annotations.NonNull FlowableEmitter<Progress> e) throws Exception {
+                                write(zip, entry, counter, e);
+                                e.onComplete();
+                            }
+                        }, BackpressureStrategy.LATEST);
+                    }
+                }, 1).concatWith(Completable.fromAction(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        // Writes the central directory, closing happens when the Flowable terminates
+                        if (zip.begin()) {
+                            try {
+                                zip.finish();
+                            } finally {
+                                zip.end();
+                            }
+                        }
+                    }
+                }).<Progress>toFlowable());
+            }
+        }, new Consumer<ZipWriter>() {
+            @Override
+            public void accept(@io.reactivex.annotations.NonNull ZipWriter zip) throws Exception {
+                // Deferred to the writing thread if an entry is being written
+                zip.close();
+            }
+        }, false);
+    }
+
+    /**
+     * Reads a small entry into memory ahead of it being written.
+     */
+    private Entry readAhead(Entry entry) throws IOException {
+        if (entry.size < 0 || entry.size > bufferThreshold) {
+            return entry;
+        }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream((int) entry.size);
+        InputStream is = openInputStream(entry.uri);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                if (data.size() + read > bufferThreshold) {
+                    // Reported size was wrong, stream it when writing instead
+                    return entry;
+                }
+                data.write(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return entry.readAhead(data.toByteArray());
+    }
+
+    private void write(ZipWriter zip, Entry entry, Progress.Counter counter,
+                       FlowableEmitter<Progress> e) throws IOException {
+        if (!zip.begin()) {
+            return;
+        }
+        try {
+            zip.putNextEntry(entry.name, entry.stored, entry.size);
+
+            if (entry.data != null) {
+                zip.write(entry.data, 0, entry.data.length);
+                e.onNext(counter.add(entry.data.length, false));
+            } else {
+                InputStream is = openInputStream(entry.uri);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    long unreported = 0;
+                    int read;
+                    while ((read = is.read(buffer)) != -1 && !e.isCancelled()) {
+                        zip.write(buffer, 0, read);
+                        unreported += read;
+                        if (unreported >= PROGRESS_INTERVAL_BYTES) {
+                            e.onNext(counter.add(unreported, false));
+                            unreported = 0;
+                        }
+                    }
+                    counter.add(unreported, false);
+                } finally {
+                    is.close();
+                }
+                if (e.isCancelled()) {
+                    return;
+                }
+            }
+
+            zip.closeEntry();
+        } finally {
+            zip.end();
+        }
+        e.onNext(counter.add(0, true));
+    }
+
+    private InputStream openInputStream(Uri uri) throws FileNotFoundException {
+        InputStream is = contentResolver.openInputStream(uri);
+        if (is == null) {
+            throw new FileNotFoundException("Unable to open " + uri);
+        }
+        return is;
+    }
+
+    private String displayName(Uri uri) {
+        String name = MediaUtils.queryString(contentResolver, uri, OpenableColumns.DISPLAY_NAME);
+        if (name == null) {
+            name = uri.getLastPathSegment();
+        }
+        name = name != null ? sanitizeName(name) : "";
+        if (name.length() == 0) {
+            name = "file";
+        }
+        if (name.indexOf('.') < 0) {
+            String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(contentResolver.getType(uri));
+            if (extension != null) {
+                name += "." + extension;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Returns a name which can't be extracted outside of the target directory, by dropping empty, "." and ".."
+     * path segments and joining the rest with '_'.
+     */
+    static String sanitizeName(String name) {
+        StringBuilder sanitized = new StringBuilder();
+        for (String segment : name.split("[/\\\\]")) {
+            if (segment.length() == 0 || segment.equals(".") || segment.equals("..")) {
+                continue;
+            }
+            if (sanitized.length() > 0) {
+                sanitized.append('_');
+            }
+            sanitized.append(segment);
+        }
+        return sanitized.toString();
+    }
+
+    private static String uniqueName(String name, Set<String> names) {
+        String unique = name;
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; !names.add(unique.toLowerCase(Locale.US)); i++) {
+            unique = base + " (" + i + ")" + extension;
+        }
+        return unique;
+    }
+
+    /**
+     * Returns whether a Uri holds already compressed media, which is STORED rather than deflated.
+     */
+    private boolean isCompressed(Uri uri) {
+        String mimeType = contentResolver.getType(uri);
+        if (mimeType == null) {
+            String extension = MimeTypeMap.getFileExtensionFromUrl(uri.toString());
+            mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase(Locale.US));
+        }
+        if (mimeType == null) {
+            return false;
+        }
+        mimeType = mimeType.toLowerCase(Locale.US);
+        if (mimeType.startsWith("video/")) {
+            return true;
+        }
+        if (mimeType.startsWith("audio/")) {
+            return !mimeType.equals("audio/wav") && !mimeType.equals("audio/x-wav");
+        }
+        return mimeType.equals("image/jpeg")
+                || mimeType.equals("image/png")
+                || mimeType.equals("image/gif")
+                || mimeType.equals("image/webp")
+                || mimeType.equals("image/heic")
+                || mimeType.equals("image/heif")
+                || mimeType.equals("application/zip");
+    }
+
+    /**
+     * Progress of an export.
+     */
+    public static final class Progress {
+
+        private final long writtenBytes;
+
+        private final long totalBytes;
+
+        private final int writtenEntries;
+
+        private final int totalEntries;
+
+        private Progress(long writtenBytes, long totalBytes, int writtenEntries, int totalEntries) {
+            this.writtenBytes = writtenBytes;
+            this.totalBytes = totalBytes;
+            this.writtenEntries = writtenEntries;
+            this.totalEntries = totalEntries;
+        }
+
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        /**
+         * Returns the total size of the Uris being exported, or -1 if the size of any of them is unknown.
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public int getWrittenEntries() {
+            return writtenEntries;
+        }
+
+        public int getTotalEntries() {
+            return totalEntries;
+        }
+
+        @Override
+        public String toString() {
+            return "Progress{writtenBytes=" + writtenBytes + ", totalBytes=" + totalBytes
+                    + ", writtenEntries=" + writtenEntries + ", totalEntries=" + totalEntries + "}";
+        }
+
+        private static final class Counter {
+
+            private final long totalBytes;
+
+            private final int totalEntries;
+
+            private long writtenBytes;
+
+            private int writtenEntries;
+
+            private Counter(long totalBytes, int totalEntries) {
+                this.totalBytes = totalBytes;
+                this.totalEntries = totalEntries;
+            }
+
+            private Progress add(long bytes, boolean entryWritten) {
+                writtenBytes += bytes;
+                if (entryWritten) {
+                    writtenEntries++;
+                }
+                return new Progress(writtenBytes, totalBytes, writtenEntries, totalEntries);
+            }
+
+        }
+
+    }
+
+    private static final class Entry {
+
+        private final Uri uri;
+
+        private final String name;
+
+        private final boolean stored;
+
+        private final long size;
+
+        private final byte[] data;
+
+        private Entry(Uri uri, String name, boolean stored, long size) {
+            this(uri, name, stored, size, null);
+        }
+
+        private Entry(Uri uri, String name, boolean stored, long size, byte[] data) {
+            this.uri = uri;
+            this.name = name;
+            this.stored = stored;
+            this.size = size;
+            this.data = data;
+        }
+
+        private Entry readAhead(byte[] data) {
+            return new Entry(uri, name, stored, data.length, data);
+        }
+
+    }
+
+    /**
+     * Writes a ZIP archive to a seekable file in a single pass. Each local header is written with a zero CRC and
+     * sizes which are patched once the entry's data has been written, so no data descriptors are needed, not
+     * even for STORED entries. ZIP64 records are only written for entries, offsets and counts which need them.
+     * <p>
+     * Writes happen between {@link #begin()} and {@link #end()}; closing while a write is in progress is deferred
+     * to {@link #end()}, so the file is always closed by the thread writing it.
+     */
+    private static final class ZipWriter {
+
+        private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+        private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+        private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+        private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+        private static final int END_SIGNATURE = 0x06054b50;
+
+        private static final int LOCAL_HEADER_SIZE = 30;
+
+        private static final int CENTRAL_HEADER_SIZE = 46;
+
+        private static final int ZIP64_END_SIZE = 56;
+
+        private static final int ZIP64_LOCATOR_SIZE = 20;
+
+        private static final int END_SIZE = 22;
+
+        private static final short ZIP64_EXTRA_ID = 0x0001;
+
+        private static final int ZIP64_LOCAL_EXTRA_SIZE = 4 + 8 + 8;
+
+        private static final short VERSION = 20;
+
+        private static final short VERSION_ZIP64 = 45;
+
+        private static final short FLAG_UTF8 = 0x0800;
+
+        private static final short METHOD_STORED = 0;
+
+        private static final short METHOD_DEFLATED = 8;
+
+        private static final long MAX_32 = 0xFFFFFFFFL;
+
+        private static final int MAX_16 = 0xFFFF;
+
+        /**
+         * Entries expected to be at least this large get ZIP64 local headers, leaving room for
+         * deflate growing incompressible data.
+         */
+        private static final long ZIP64_ENTRY_THRESHOLD = 0xF0000000L;
+
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        private final ParcelFileDescriptor pfd;
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        private final byte[] deflated = new byte[BUFFER_SIZE];
+
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        private final CRC32 crc = new CRC32();
+
+        private final List<CentralEntry> entries = new ArrayList<>();
+
+        private final int dosTime;
+
+        private final int dosDate;
+
+        private final Object lock = new Object();
+
+        private boolean writing;
+
+        private boolean closed;
+
+        private long position;
+
+        private CentralEntry current;
+
+        private ZipWriter(ParcelFileDescriptor pfd) throws IOException {
+            this.pfd = pfd;
+            this.channel = new FileOutputStream(pfd.getFileDescriptor()).getChannel();
+            channel.position(0);
+
+            Calendar calendar = Calendar.getInstance();
+            dosTime = (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5)
+                    | (calendar.get(Calendar.SECOND) >> 1);
+            dosDate = ((calendar.get(Calendar.YEAR) - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5)
+                    | calendar.get(Calendar.DAY_OF_MONTH);
+        }
+
+        /**
+         * Returns false if the writer has been closed, otherwise writes may happen until {@link #end()}.
+         */
+        private boolean begin() {
+            synchronized (lock) {
+                if (closed) {
+                    return false;
+                }
+                writing = true;
+                return true;
+            }
+        }
+
+        private void end() throws IOException {
+            synchronized (lock) {
+                writing = false;
+                if (!closed) {
+                    return;
+                }
+            }
+            release();
+        }
+
+        private void close() throws IOException {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (writing) {
+                    return;
+                }
+            }
+            release();
+        }
+
+        private void release() throws IOException {
+            deflater.end();
+            try {
+                channel.close();
+            } finally {
+                pfd.close();
+            }
+        }
+
+        /**
+         * Starts an entry.
+         *
+         * @param expectedSize The size of the entry if known, otherwise -1.
+         */
+        private void putNextEntry(String name, boolean stored, long expectedSize) throws IOException {
+            byte[] nameBytes = name.getBytes(UTF_8);
+            if (nameBytes.length > MAX_16) {
+                throw new ZipException("Name too long: " + name);
+            }
+            current = new CentralEntry(nameBytes, stored ? METHOD_STORED : METHOD_DEFLATED, position,
+                    expectedSize < 0 || expectedSize >= ZIP64_ENTRY_THRESHOLD);
+            crc.reset();
+            deflater.reset();
+
+            ensureCapacity(LOCAL_HEADER_SIZE);
+            buffer.putInt(LOCAL_HEADER_SIGNATURE)
+                    .putShort(current.zip64Local ? VERSION_ZIP64 : VERSION)
+                    .putShort(FLAG_UTF8)
+                    .putShort(current.method)
+                    .putShort((short) dosTime)
+                    .putShort((short) dosDate)
+                    // CRC and sizes are patched by closeEntry()
+                    .putInt(0)
+                    .putInt(current.zip64Local ? (int) MAX_32 : 0)
+                    .putInt(current.zip64Local ? (int) MAX_32 : 0)
+                    .putShort((short) nameBytes.length)
+                    .putShort((short) (current.zip64Local ? ZIP64_LOCAL_EXTRA_SIZE : 0));
+            position += LOCAL_HEADER_SIZE;
+            writeRaw(nameBytes, 0, nameBytes.length);
+            if (current.zip64Local) {
+                ensureCapacity(ZIP64_LOCAL_EXTRA_SIZE);
+                buffer.putShort(ZIP64_EXTRA_ID).putShort((short) 16).putLong(0).putLong(0);
+                position += ZIP64_LOCAL_EXTRA_SIZE;
+            }
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            current.size += len;
+            if (current.method == METHOD_STORED) {
+                writeRaw(b, off, len);
+                current.compressedSize += len;
+            } else {
+                deflater.setInput(b, off, len);
+                while (!deflater.needsInput()) {
+                    deflate();
+                }
+            }
+        }
+
+        private void closeEntry() throws IOException {
+            if (current.method == METHOD_DEFLATED) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate();
+                }
+            }
+            current.crc = crc.getValue();
+            if (!current.zip64Local && (current.size >= MAX_32 || current.compressedSize >= MAX_32)) {
+                throw new ZipException("Entry " + new String(current.name, UTF_8) + " is larger than its reported size");
+            }
+
+            // Patch the local header, which may still be buffered
+            flush();
+            ByteBuffer patch = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            patch.putInt((int) current.crc);
+            if (current.zip64Local) {
+                patch.putInt((int) MAX_32).putInt((int) MAX_32);
+            } else {
+                patch.putInt((int) current.compressedSize).putInt((int) current.size);
+            }
+            writeFully(patch, current.offset + 14);
+            if (current.zip64Local) {
+                patch = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                patch.putLong(current.size).putLong(current.compressedSize);
+                writeFully(patch, current.offset + LOCAL_HEADER_SIZE + current.name.length + 4);
+            }
+
+            entries.add(current);
+            current = null;
+        }
+
+        /**
+         * Writes the central directory and truncates anything left over from the target's previous contents.
+         */
+        private void finish() throws IOException {
+            long centralOffset = position;
+            for (CentralEntry entry : entries) {
+                boolean zip64Size = entry.size >= MAX_32;
+                boolean zip64CompressedSize = entry.compressedSize >= MAX_32;
+                boolean zip64Offset = entry.offset >= MAX_32;
+                int extraSize = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+                boolean zip64 = extraSize > 0;
+                short version = zip64 || entry.zip64Local ? VERSION_ZIP64 : VERSION;
+
+                ensureCapacity(CENTRAL_HEADER_SIZE);
+                buffer.putInt(CENTRAL_HEADER_SIGNATURE)
+                        .putShort(version)
+                        .putShort(version)
+                        .putShort(FLAG_UTF8)
+                        .putShort(entry.method)
+                        .putShort((short) dosTime)
+                        .putShort((short) dosDate)
+                        .putInt((int) entry.crc)
+                        .putInt((int) (zip64CompressedSize ? MAX_32 : entry.compressedSize))
+                        .putInt((int) (zip64Size ? MAX_32 : entry.size))
+                        .putShort((short) entry.name.length)
+                        .putShort((short) (zip64 ? 4 + extraSize : 0))
+                        // Comment length, disk number, internal and external attributes
+                        .putShort((short) 0)
+                        .putShort((short) 0)
+                        .putShort((short) 0)
+                        .putInt(0)
+                        .putInt((int) (zip64Offset ? MAX_32 : entry.offset));
+                position += CENTRAL_HEADER_SIZE;
+                writeRaw(entry.name, 0, entry.name.length);
+                if (zip64) {
+                    ensureCapacity(4 + extraSize);
+                    buffer.putShort(ZIP64_EXTRA_ID).putShort((short) extraSize);
+                    if (zip64Size) {
+                        buffer.putLong(entry.size);
+                    }
+                    if (zip64CompressedSize) {
+                        buffer.putLong(entry.compressedSize);
+                    }
+                    if (zip64Offset) {
+                        buffer.putLong(entry.offset);
+                    }
+                    position += 4 + extraSize;
+                }
+            }
+            long centralSize = position - centralOffset;
+
+            if (entries.size() >= MAX_16 || centralOffset >= MAX_32 || centralSize >= MAX_32) {
+                long zip64EndOffset = position;
+                ensureCapacity(ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE);
+                buffer.putInt(ZIP64_END_SIGNATURE)
+                        .putLong(ZIP64_END_SIZE - 12)
+                        .putShort(VERSION_ZIP64)
+                        .putShort(VERSION_ZIP64)
+                        .putInt(0)
+                        .putInt(0)
+                        .putLong(entries.size())
+                        .putLong(entries.size())
+                        .putLong(centralSize)
+                        .putLong(centralOffset)
+                        .putInt(ZIP64_LOCATOR_SIGNATURE)
+                        .putInt(0)
+                        .putLong(zip64EndOffset)
+                        .putInt(1);
+                position += ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE;
+            }
+
+            ensureCapacity(END_SIZE);
+            buffer.putInt(END_SIGNATURE)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) Math.min(entries.size(), MAX_16))
+                    .putShort((short) Math.min(entries.size(), MAX_16))
+                    .putInt((int) Math.min(centralSize, MAX_32))
+                    .putInt((int) Math.min(centralOffset, MAX_32))
+                    .putShort((short) 0);
+            position += END_SIZE;
+
+            flush();
+            channel.truncate(position);
+        }
+
+        private void deflate() throws IOException {
+            int length = deflater.deflate(deflated);
+            writeRaw(deflated, 0, length);
+            current.compressedSize += length;
+        }
+
+        private void writeRaw(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int count = Math.min(len, buffer.remaining());
+                buffer.put(b, off, count);
+                position += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        /**
+         * Flushes if fewer than length bytes can be buffered. Callers advance the position themselves.
+         */
+        private void ensureCapacity(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer src, long at) throws IOException {
+            src.flip();
+            while (src.hasRemaining()) {
+                at += channel.write(src, at);
+            }
+        }
+
+    }
+
+    /**
+     * An entry which has been written, as recorded in the central directory.
+     */
+    private static final class CentralEntry {
+
+        private final byte[] name;
+
+        private final short method;
+
+        private final long offset;
+
+        private final boolean zip64Local;
+
+        private long crc;
+
+        private long size;
+
+        private long compressedSize;
+
+        private CentralEntry(byte[] name, short method, long offset, boolean zip64Local) {
+            this.name = name;
+            this.method = method;
+            this.offset = offset;
+            this.zip64Local = zip64Local;
+        }
+
+    }
+
+    public static final class Builder {
+
+        private final Context context;
+
+        private int maxReadAhead = DEFAULT_MAX_READ_AHEAD;
+
+        private int bufferThreshold = DEFAULT_BUFFER_THRESHOLD;
+
+        /**
+         * Creates a {@link Builder} for a {@link ZipExporter}.
+         *
+         * @param context A Context to read and write Uris with.
+         */
+        public Builder(@NonNull Context context) {
+            this.context = context.getApplicationContext();
+        }
+
+        /**
+         * Sets how many entries are read ahead in parallel, defaults to {@link #DEFAULT_MAX_READ_AHEAD}.
+         *
+         * @return This Builder object to allow for chaining of calls.
+         */
+        public Builder setMaxReadAhead(int maxReadAhead) {
+            if (maxReadAhead <= 0) {
+                throw new IllegalArgumentException("maxReadAhead must be > 0");
+            }
+            this.maxReadAhead = maxReadAhead;
+            return this;
+        }
+
+        /**
+         * Sets the size in bytes up to which entries are read ahead into memory,
+         * defaults to {@link #DEFAULT_BUFFER_THRESHOLD}.
+         *
+         * @return This Builder object to allow for chaining of calls.
+         */
+        public Builder setBufferThreshold(int bufferThreshold) {
+            this.bufferThreshold = Math.max(bufferThreshold, 0);
+            return this;
+        }
+
+        /**
+         * Creates a ZipExporter with the arguments supplied to this builder.
+         */
+        public ZipExporter build() {
+            return new ZipExporter(context, maxReadAhead, bufferThreshold);
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.marchinram.rxgallery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MediaCipherTest {
+
+    private static final int SEGMENT_SIZE = 256;
+
+    private static final int TAG_SIZE = 16;
+
+    private static final int HEADER_SIZE = 28;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final MediaCipher cipher = new MediaCipher(new SecretKeySpec(randomBytes(32, 1), "AES"), SEGMENT_SIZE);
+
+    @Test
+    public void roundTripsSegmentBoundaries() throws IOException {
+        int[] sizes = {0, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 2 * SEGMENT_SIZE};
+        for (int size : sizes) {
+            byte[] plaintext = randomBytes(size, size);
+            byte[] encrypted = encrypt(plaintext);
+            int segments = Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            // A full last segment is not followed by an empty one
+            assertEquals(HEADER_SIZE + size + segments * TAG_SIZE, encrypted.length);
+            assertArrayEquals("size " + size, plaintext, decrypt(encrypted));
+        }
+    }
+
+    @Test
+    public void rejectsTruncation() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(2 * SEGMENT_SIZE + 10, 2));
+        // Dropping the last segment leaves a valid but not last segment at the end
+        assertDecryptFails(Arrays.copyOf(encrypted, HEADER_SIZE + 2 * (SEGMENT_SIZE + TAG_SIZE)));
+        assertDecryptFails(Arrays.copyOf(encrypted, encrypted.length - 1));
+        assertDecryptFails(Arrays.copyOf(encrypted, HEADER_SIZE + TAG_SIZE - 1));
+        assertDecryptFails(Arrays.copyOf(encrypted, HEADER_SIZE - 1));
+    }
+
+    @Test
+    public void rejectsReorderedSegments() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(3 * SEGMENT_SIZE, 3));
+        int segment = SEGMENT_SIZE + TAG_SIZE;
+        byte[] reordered = encrypted.clone();
+        System.arraycopy(encrypted, HEADER_SIZE, reordered, HEADER_SIZE + segment, segment);
+        System.arraycopy(encrypted, HEADER_SIZE + segment, reordered, HEADER_SIZE, segment);
+        assertDecryptFails(reordered);
+    }
+
+    @Test
+    public void rejectsFlippedByte() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(SEGMENT_SIZE + 1, 4));
+        for (int position : new int[]{HEADER_SIZE, HEADER_SIZE + SEGMENT_SIZE + TAG_SIZE, encrypted.length - 1}) {
+            byte[] flipped = encrypted.clone();
+            flipped[position] ^= 1;
+            assertDecryptFails(flipped);
+        }
+    }
+
+    @Test
+    public void rejectsModifiedHeader() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(SEGMENT_SIZE, 5));
+        // Salt, nonce prefix and segment size
+        for (int position : new int[]{HEADER_SIZE - 1, 5, 4}) {
+            byte[] modified = encrypted.clone();
+            modified[position] ^= 1;
+            assertDecryptFails(modified);
+        }
+    }
+
+    @Test
+    public void seekableReadsAcrossSegments() throws IOException {
+        byte[] plaintext = randomBytes(3 * SEGMENT_SIZE + 17, 6);
+        File file = temporaryFolder.newFile();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(encrypt(plaintext));
+        } finally {
+            fos.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MediaCipher.SeekableDecryptor decryptor = cipher.newSeekableDecryptor(raf.getChannel());
+            assertEquals(plaintext.length, decryptor.size());
+
+            int[][] ranges = {
+                    {SEGMENT_SIZE - 10, 20},
+                    {0, plaintext.length},
+                    {2 * SEGMENT_SIZE - 1, SEGMENT_SIZE + 2},
+                    {5, 3},
+                    {3 * SEGMENT_SIZE, 17},
+            };
+            for (int[] range : ranges) {
+                ByteBuffer dst = ByteBuffer.allocate(range[1]);
+                assertEquals(range[1], decryptor.read(dst, range[0]));
+                assertArrayEquals(Arrays.copyOfRange(plaintext, range[0], range[0] + range[1]), dst.array());
+            }
+
+            ByteBuffer pastEnd = ByteBuffer.allocate(10);
+            assertEquals(5, decryptor.read(pastEnd, plaintext.length - 5));
+            assertEquals(-1, decryptor.read(pastEnd, plaintext.length));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private byte[] encrypt(byte[] plaintext) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream os = cipher.newEncryptingStream(baos);
+        // Uneven writes so segments are filled across calls
+        for (int off = 0; off < plaintext.length; off += 100) {
+            os.write(plaintext, off, Math.min(100, plaintext.length - off));
+        }
+        os.close();
+        return baos.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] encrypted) throws IOException {
+        InputStream is = cipher.newDecryptingStream(new ByteArrayInputStream(encrypted));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[77];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    private void assertDecryptFails(byte[] encrypted) {
+        try {
+            decrypt(encrypted);
+            fail("Expected decryption to fail");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,346 @@
+package com.marchinram.rxgallery;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.subscribers.TestSubscriber;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class MediaUploaderTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MockWebServer server;
+
+    private Context context;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        context = RuntimeEnvironment.application;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void uploadsChunksWithHeaders() throws Exception {
+        byte[] data = randomBytes(CHUNK_SIZE * 2 + CHUNK_SIZE / 2);
+        Uri uri = writeFile(data);
+        enqueue(200, 200, 200);
+
+        TestSubscriber<MediaUploader.Progress> ts = newUploader(0).upload(uri).test();
+        assertTrue(ts.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        ts.assertComplete();
+
+        assertEquals(3, server.getRequestCount());
+        String uploadId = null;
+        String[] expectedRanges = {"bytes 0-1023/2560", "bytes 1024-2047/2560", "bytes 2048-2559/2560"};
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest request = server.takeRequest();
+            assertEquals("PUT", request.getMethod());
+            assertEquals(expectedRanges[i], request.getHeader(MediaUploader.HEADER_CONTENT_RANGE));
+            if (uploadId == null) {
+                uploadId = request.getHeader(MediaUploader.HEADER_UPLOAD_ID);
+            }
+            assertEquals(uploadId, request.getHeader(MediaUploader.HEADER_UPLOAD_ID));
+            assertArrayEquals(Arrays.copyOfRange(data, i * CHUNK_SIZE, Math.min((i + 1) * CHUNK_SIZE, data.length)),
+                    request.getBody().readByteArray());
+        }
+
+        List<MediaUploader.Progress> progress = ts.values();
+        assertEquals(4, progress.size());
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i).getUploadedBytes() > progress.get(i - 1).getUploadedBytes());
+        }
+        assertTrue(progress.get(progress.size() - 1).isComplete());
+    }
+
+    @Test
+    public void uploadsEmptyFile() throws Exception {
+        Uri uri = writeFile(new byte[0]);
+        enqueue(200);
+
+        TestSubscriber<MediaUploader.Progress> ts = newUploader(0).upload(uri).test();
+        assertTrue(ts.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        ts.assertComplete();
+
+        assertEquals(1, server.getRequestCount());
+        RecordedRequest request = server.takeRequest();
+        assertEquals("bytes */0", request.getHeader(MediaUploader.HEADER_CONTENT_RANGE));
+        assertEquals(0, request.getBodySize());
+    }
+
+    @Test
+    public void resumesAfterFailedChunk() throws Exception {
+        byte[] data = randomBytes(CHUNK_SIZE * 3);
+        Uri uri = writeFile(data);
+        enqueue(200, 500);
+
+        TestSubscriber<MediaUploader.Progress> failed = newUploader(0).upload(uri).test();
+        assertTrue(failed.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        failed.assertError(IOException.class);
+        assertEquals(2, server.getRequestCount());
+        String uploadId = server.takeRequest().getHeader(MediaUploader.HEADER_UPLOAD_ID);
+        server.takeRequest();
+
+        enqueue(200, 200);
+        TestSubscriber<MediaUploader.Progress> resumed = newUploader(0).upload(uri).test();
+        assertTrue(resumed.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        resumed.assertComplete();
+
+        assertEquals(4, server.getRequestCount());
+        RecordedRequest second = server.takeRequest();
+        RecordedRequest third = server.takeRequest();
+        assertEquals("bytes 1024-2047/3072", second.getHeader(MediaUploader.HEADER_CONTENT_RANGE));
+        assertEquals("bytes 2048-3071/3072", third.getHeader(MediaUploader.HEADER_CONTENT_RANGE));
+        assertEquals(uploadId, second.getHeader(MediaUploader.HEADER_UPLOAD_ID));
+        assertEquals(uploadId, third.getHeader(MediaUploader.HEADER_UPLOAD_ID));
+        assertEquals(CHUNK_SIZE, resumed.values().get(0).getUploadedBytes());
+    }
+
+    @Test
+    public void restartsWhenFileModified() throws Exception {
+        Uri uri = writeFile(randomBytes(CHUNK_SIZE * 2));
+        enqueue(200, 500);
+
+        TestSubscriber<MediaUploader.Progress> failed = newUploader(0).upload(uri).test();
+        assertTrue(failed.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        failed.assertError(IOException.class);
+        String uploadId = server.takeRequest().getHeader(MediaUploader.HEADER_UPLOAD_ID);
+        server.takeRequest();
+
+        File file = new File(uri.getPath());
+        assertTrue(file.setLastModified(file.lastModified() + 60 * 1000));
+        enqueue(200, 200);
+        TestSubscriber<MediaUploader.Progress> restarted = newUploader(0).upload(uri).test();
+        assertTrue(restarted.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        restarted.assertComplete();
+
+        assertEquals(4, server.getRequestCount());
+        RecordedRequest request = server.takeRequest();
+        assertEquals("bytes 0-1023/2048", request.getHeader(MediaUploader.HEADER_CONTENT_RANGE));
+        assertTrue(!uploadId.equals(request.getHeader(MediaUploader.HEADER_UPLOAD_ID)));
+    }
+
+    @Test
+    public void retriesFailedChunk() throws Exception {
+        Uri uri = writeFile(randomBytes(CHUNK_SIZE));
+        enqueue(500, 503, 200);
+
+        TestSubscriber<MediaUploader.Progress> ts = newUploader(2).upload(uri).test();
+        assertTrue(ts.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        ts.assertComplete();
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void failsAfterMaxRetries() throws Exception {
+        Uri uri = writeFile(randomBytes(CHUNK_SIZE));
+        enqueue(500, 500, 500, 200);
+
+        TestSubscriber<MediaUploader.Progress> ts = newUploader(2).upload(uri).test();
+        assertTrue(ts.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        ts.assertError(IOException.class);
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void uploadsChunksConcurrently() throws Exception {
+        Uri uri = writeFile(randomBytes(CHUNK_SIZE * 4));
+        // The first chunk is held back until two others have been answered
+        HoldFirstChunkDispatcher dispatcher = new HoldFirstChunkDispatcher(2, 200);
+        server.setDispatcher(dispatcher);
+
+        TestSubscriber<MediaUploader.Progress> ts = newUploader(0, 3).upload(uri).test();
+        assertTrue(ts.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        ts.assertComplete();
+
+        assertEquals(4, server.getRequestCount());
+        assertTrue(dispatcher.maxInFlight.get() > 1);
+        assertEquals("bytes 0-1023/4096", dispatcher.completedRanges.get(dispatcher.completedRanges.size() - 1));
+        assertProgressIncreases(ts.values(), 4 * CHUNK_SIZE);
+    }
+
+    @Test
+    public void resumesAfterConcurrentFailure() throws Exception {
+        Uri uri = writeFile(randomBytes(CHUNK_SIZE * 4));
+        // The first chunk fails once every other chunk has been answered
+        HoldFirstChunkDispatcher dispatcher = new HoldFirstChunkDispatcher(3, 500);
+        server.setDispatcher(dispatcher);
+
+        TestSubscriber<MediaUploader.Progress> failed = newUploader(0, 3).upload(uri).test();
+        assertTrue(failed.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        failed.assertError(IOException.class);
+        assertEquals(4, server.getRequestCount());
+        assertTrue(dispatcher.maxInFlight.get() > 1);
+        assertProgressIncreases(failed.values(), 3 * CHUNK_SIZE);
+
+        server.setDispatcher(new HoldFirstChunkDispatcher(0, 200));
+        TestSubscriber<MediaUploader.Progress> resumed = newUploader(0, 3).upload(uri).test();
+        assertTrue(resumed.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        resumed.assertComplete();
+
+        assertEquals(5, server.getRequestCount());
+        for (int i = 0; i < 4; i++) {
+            server.takeRequest();
+        }
+        assertEquals("bytes 0-1023/4096", server.takeRequest().getHeader(MediaUploader.HEADER_CONTENT_RANGE));
+        assertEquals(3 * CHUNK_SIZE, resumed.values().get(0).getUploadedBytes());
+        assertProgressIncreases(resumed.values(), 4 * CHUNK_SIZE);
+    }
+
+    @Test
+    public void removesExpiredState() throws Exception {
+        SharedPreferences prefs = context.getSharedPreferences(MediaUploader.PREFS_NAME, Context.MODE_PRIVATE);
+        long expired = System.currentTimeMillis() - MediaUploader.STATE_EXPIRY_MILLIS - 1;
+        long recent = System.currentTimeMillis();
+        prefs.edit()
+                .putString("expired", "id;2048;1;" + expired + ";1;")
+                .putString("recent", "id;2048;1;" + recent + ";1;")
+                .putString("corrupt", "id;2048")
+                .apply();
+
+        Uri uri = writeFile(randomBytes(CHUNK_SIZE));
+        enqueue(200);
+        TestSubscriber<MediaUploader.Progress> ts = newUploader(0).upload(uri).test();
+        assertTrue(ts.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        ts.assertComplete();
+
+        assertFalse(prefs.contains("expired"));
+        assertFalse(prefs.contains("corrupt"));
+        assertTrue(prefs.contains("recent"));
+    }
+
+    private MediaUploader newUploader(int maxRetries) {
+        return newUploader(maxRetries, 1);
+    }
+
+    private MediaUploader newUploader(int maxRetries, int maxConcurrency) {
+        return new MediaUploader.Builder(context, server.url("/upload").url())
+                .setChunkSize(CHUNK_SIZE)
+                .setMaxConcurrency(maxConcurrency)
+                .setMaxRetries(maxRetries)
+                .build();
+    }
+
+    private static void assertProgressIncreases(List<MediaUploader.Progress> progress, long lastUploadedBytes) {
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i).getUploadedBytes() > progress.get(i - 1).getUploadedBytes());
+        }
+        assertEquals(lastUploadedBytes, progress.get(progress.size() - 1).getUploadedBytes());
+    }
+
+    private void enqueue(int... responseCodes) {
+        for (int responseCode : responseCodes) {
+            server.enqueue(new MockResponse().setResponseCode(responseCode));
+        }
+    }
+
+    private Uri writeFile(byte[] data) throws IOException {
+        File file = temporaryFolder.newFile();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        return Uri.fromFile(file);
+    }
+
+    /**
+     * Answers the chunk at offset 0 with a response code only after a number of other chunks have been answered,
+     * all other chunks succeed right away.
+     */
+    private static final class HoldFirstChunkDispatcher extends Dispatcher {
+
+        private final CountDownLatch othersAnswered;
+
+        private final int firstChunkResponseCode;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        private final List<String> completedRanges = Collections.synchronizedList(new ArrayList<String>());
+
+        private HoldFirstChunkDispatcher(int othersBeforeFirst, int firstChunkResponseCode) {
+            this.othersAnswered = new CountDownLatch(othersBeforeFirst);
+            this.firstChunkResponseCode = firstChunkResponseCode;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            int current = inFlight.incrementAndGet();
+            while (true) {
+                int max = maxInFlight.get();
+                if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                    break;
+                }
+            }
+            String range = request.getHeader(MediaUploader.HEADER_CONTENT_RANGE);
+            try {
+                if (range.startsWith("bytes 0-")) {
+                    assertTrue(othersAnswered.await(5, TimeUnit.SECONDS));
+                    // Give the uploader time to record the other chunks before this one answers
+                    Thread.sleep(200);
+                    return new MockResponse().setResponseCode(firstChunkResponseCode);
+                }
+                return new MockResponse().setResponseCode(200);
+            } finally {
+                completedRanges.add(range);
+                inFlight.decrementAndGet();
+                if (!range.startsWith("bytes 0-")) {
+                    othersAnswered.countDown();
+                }
+            }
+        }
+
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+}
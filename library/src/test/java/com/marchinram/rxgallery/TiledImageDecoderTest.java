@@ -0,0 +1,182 @@
+package com.marchinram.rxgallery;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class TiledImageDecoderTest {
+
+    private static final int TILE_SIZE = 256;
+
+    private static final int WIDTH = 1000;
+
+    private static final int HEIGHT = 599;
+
+    @Test
+    public void sampleSizeForScale() {
+        assertEquals(1, TiledImageDecoder.sampleSizeForScale(2f));
+        assertEquals(1, TiledImageDecoder.sampleSizeForScale(1f));
+        assertEquals(1, TiledImageDecoder.sampleSizeForScale(0.6f));
+        assertEquals(2, TiledImageDecoder.sampleSizeForScale(0.5f));
+        assertEquals(2, TiledImageDecoder.sampleSizeForScale(0.3f));
+        assertEquals(4, TiledImageDecoder.sampleSizeForScale(0.25f));
+        assertEquals(1 << 16, TiledImageDecoder.sampleSizeForScale(Float.MIN_VALUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sampleSizeForZeroScale() {
+        TiledImageDecoder.sampleSizeForScale(0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sampleSizeForNaNScale() {
+        TiledImageDecoder.sampleSizeForScale(Float.NaN);
+    }
+
+    @Test
+    public void tileKeysCoverRegion() {
+        assertEquals(keys(1, new int[][]{{0, 0}, {1, 0}, {2, 0}, {3, 0}, {0, 1}, {1, 1}, {2, 1}, {3, 1},
+                        {0, 2}, {1, 2}, {2, 2}, {3, 2}}),
+                TiledImageDecoder.tileKeys(new Rect(0, 0, WIDTH, HEIGHT), TILE_SIZE, 1));
+        assertEquals(keys(1, new int[][]{{1, 1}, {2, 1}, {1, 2}, {2, 2}}),
+                TiledImageDecoder.tileKeys(new Rect(300, 300, 520, 520), TILE_SIZE, 1));
+        // Ends on a tile boundary, so the next tile isn't included
+        assertEquals(keys(1, new int[][]{{0, 0}}),
+                TiledImageDecoder.tileKeys(new Rect(0, 0, TILE_SIZE, TILE_SIZE), TILE_SIZE, 1));
+        assertEquals(keys(2, new int[][]{{0, 0}, {1, 0}, {0, 1}, {1, 1}}),
+                TiledImageDecoder.tileKeys(new Rect(0, 0, WIDTH, HEIGHT), TILE_SIZE, 2));
+    }
+
+    @Test
+    public void edgeTileRects() {
+        TiledImageDecoder.TileKey corner = new TiledImageDecoder.TileKey(1, 3, 2);
+        Rect sourceRect = TiledImageDecoder.sourceRect(corner, TILE_SIZE, WIDTH, HEIGHT);
+        assertEquals(new Rect(768, 512, WIDTH, HEIGHT), sourceRect);
+        // A reused full size bitmap is only partly filled by an edge tile
+        TiledImageDecoder.Tile tile = new TiledImageDecoder.Tile(sourceRect, 1, newTileBitmap(), TILE_SIZE);
+        assertEquals(new Rect(0, 0, 232, 87), tile.getBitmapRect());
+
+        TiledImageDecoder.TileKey sampledEdge = new TiledImageDecoder.TileKey(2, 0, 1);
+        sourceRect = TiledImageDecoder.sourceRect(sampledEdge, TILE_SIZE, WIDTH, HEIGHT);
+        assertEquals(new Rect(0, 512, 512, HEIGHT), sourceRect);
+        tile = new TiledImageDecoder.Tile(sourceRect, 2, newTileBitmap(), TILE_SIZE);
+        // 87 rows at a sample size of 2 round up to 44
+        assertEquals(new Rect(0, 0, 256, 44), tile.getBitmapRect());
+
+        TiledImageDecoder.TileKey inner = new TiledImageDecoder.TileKey(1, 1, 1);
+        sourceRect = TiledImageDecoder.sourceRect(inner, TILE_SIZE, WIDTH, HEIGHT);
+        assertEquals(new Rect(256, 256, 512, 512), sourceRect);
+        tile = new TiledImageDecoder.Tile(sourceRect, 1, newTileBitmap(), TILE_SIZE);
+        assertEquals(new Rect(0, 0, TILE_SIZE, TILE_SIZE), tile.getBitmapRect());
+    }
+
+    @Test
+    public void pinnedTilesAreNeverEvicted() {
+        TiledImageDecoder.BitmapPool pool = new TiledImageDecoder.BitmapPool(4);
+        TiledImageDecoder.TileCache cache = new TiledImageDecoder.TileCache(2, pool);
+
+        List<TiledImageDecoder.TileKey> pinned = keys(1, new int[][]{{0, 0}, {1, 0}, {2, 0}, {3, 0}, {4, 0}});
+        cache.pin(pinned);
+        for (TiledImageDecoder.TileKey key : pinned) {
+            cache.put(key, newTile());
+        }
+        // The pinned tiles are the least recently used from here on
+        for (int col = 0; col < 10; col++) {
+            cache.put(new TiledImageDecoder.TileKey(1, col, 5), newTile());
+        }
+        assertEquals(pinned.size() + 2, cache.size());
+        for (TiledImageDecoder.TileKey key : pinned) {
+            assertNotNull(cache.get(key));
+        }
+        assertNull(cache.get(new TiledImageDecoder.TileKey(1, 0, 5)));
+        assertNotNull(cache.get(new TiledImageDecoder.TileKey(1, 9, 5)));
+    }
+
+    @Test
+    public void cacheHoldsPinnedPlusExtraTiles() {
+        TiledImageDecoder.BitmapPool pool = new TiledImageDecoder.BitmapPool(4);
+        TiledImageDecoder.TileCache cache = new TiledImageDecoder.TileCache(3, pool);
+
+        for (int col = 0; col < 10; col++) {
+            cache.put(new TiledImageDecoder.TileKey(1, col, 0), newTile());
+        }
+        assertEquals(3, cache.size());
+
+        List<TiledImageDecoder.TileKey> pinned = keys(1, new int[][]{{0, 1}, {1, 1}, {2, 1}, {3, 1}});
+        cache.pin(pinned);
+        for (TiledImageDecoder.TileKey key : pinned) {
+            cache.put(key, newTile());
+        }
+        assertEquals(pinned.size() + 3, cache.size());
+
+        // Pinning fewer tiles shrinks the cache right away
+        cache.pin(pinned.subList(0, 1));
+        assertEquals(1 + 3, cache.size());
+        assertNotNull(cache.get(pinned.get(0)));
+    }
+
+    @Test
+    public void evictedBitmapsAreReused() {
+        TiledImageDecoder.BitmapPool pool = new TiledImageDecoder.BitmapPool(1);
+        TiledImageDecoder.TileCache cache = new TiledImageDecoder.TileCache(1, pool);
+
+        TiledImageDecoder.Tile first = newTile();
+        TiledImageDecoder.Tile second = newTile();
+        TiledImageDecoder.Tile third = newTile();
+        cache.put(new TiledImageDecoder.TileKey(1, 0, 0), first);
+        cache.put(new TiledImageDecoder.TileKey(1, 1, 0), second);
+        cache.put(new TiledImageDecoder.TileKey(1, 2, 0), third);
+
+        // The pool holds one bitmap, so the second eviction is recycled instead
+        assertSame(first.getBitmap(), pool.get());
+        assertFalse(first.getBitmap().isRecycled());
+        assertTrue(second.getBitmap().isRecycled());
+        assertNull(pool.get());
+    }
+
+    @Test
+    public void duplicateDecodeKeepsCachedTile() {
+        TiledImageDecoder.BitmapPool pool = new TiledImageDecoder.BitmapPool(1);
+        TiledImageDecoder.TileCache cache = new TiledImageDecoder.TileCache(4, pool);
+        TiledImageDecoder.TileKey key = new TiledImageDecoder.TileKey(1, 0, 0);
+
+        TiledImageDecoder.Tile cached = newTile();
+        TiledImageDecoder.Tile duplicate = newTile();
+        assertSame(cached, cache.put(key, cached));
+        assertSame(cached, cache.put(key, duplicate));
+        assertSame(duplicate.getBitmap(), pool.get());
+    }
+
+    private static List<TiledImageDecoder.TileKey> keys(int sampleSize, int[][] cols) {
+        List<TiledImageDecoder.TileKey> keys = new ArrayList<>();
+        for (int[] colRow : cols) {
+            keys.add(new TiledImageDecoder.TileKey(sampleSize, colRow[0], colRow[1]));
+        }
+        return keys;
+    }
+
+    private static TiledImageDecoder.Tile newTile() {
+        return new TiledImageDecoder.Tile(new Rect(0, 0, TILE_SIZE, TILE_SIZE), 1, newTileBitmap(), TILE_SIZE);
+    }
+
+    private static Bitmap newTileBitmap() {
+        return Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+    }
+
+}
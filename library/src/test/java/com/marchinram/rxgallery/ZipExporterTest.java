@@ -0,0 +1,324 @@
+package com.marchinram.rxgallery;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import io.reactivex.subscribers.TestSubscriber;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class ZipExporterTest {
+
+    private static final String AUTHORITY = "com.marchinram.rxgallery.test";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        TestProvider.SOURCES.clear();
+        Robolectric.setupContentProvider(TestProvider.class, AUTHORITY);
+    }
+
+    @Test
+    public void writesStoredAndDeflatedEntries() throws Exception {
+        // Read ahead into memory and streamed while writing
+        for (int bufferThreshold : new int[]{ZipExporter.DEFAULT_BUFFER_THRESHOLD, 0}) {
+            TestProvider.SOURCES.clear();
+            byte[] photo = randomBytes(100 * 1024);
+            byte[] notes = repeatedText(200 * 1024);
+            byte[] unknownSize = repeatedText(3000);
+            File unknownSizeFile = writeFile(temporaryFolder.newFile("clip.txt"), unknownSize);
+            List<Uri> uris = Arrays.asList(
+                    addSource("photo.jpg", "image/jpeg", photo),
+                    addSource("notes.txt", "text/plain", notes),
+                    addSource("empty.txt", "text/plain", new byte[0]),
+                    Uri.fromFile(unknownSizeFile));
+
+            File target = temporaryFolder.newFile();
+            export(new ZipExporter.Builder(RuntimeEnvironment.application)
+                    .setBufferThreshold(bufferThreshold)
+                    .build(), uris, target);
+
+            ZipFile zip = new ZipFile(target);
+            try {
+                assertEquals(4, zip.size());
+                assertEntry(zip, "photo.jpg", ZipEntry.STORED, photo);
+                assertEntry(zip, "notes.txt", ZipEntry.DEFLATED, notes);
+                assertEntry(zip, "empty.txt", ZipEntry.DEFLATED, new byte[0]);
+                assertEntry(zip, "clip.txt", ZipEntry.DEFLATED, unknownSize);
+                assertTrue(zip.getEntry("notes.txt").getCompressedSize() < notes.length / 10);
+            } finally {
+                zip.close();
+            }
+
+            // Local headers, including the patched CRC and sizes
+            ZipInputStream zis = new ZipInputStream(new FileInputStream(target));
+            try {
+                assertLocalEntry(zis, "photo.jpg", photo, false);
+                assertLocalEntry(zis, "notes.txt", notes, false);
+                assertLocalEntry(zis, "empty.txt", new byte[0], false);
+                // Its size wasn't known up front, so its local header has a ZIP64 extra field
+                assertLocalEntry(zis, "clip.txt", unknownSize, true);
+                assertNull(zis.getNextEntry());
+            } finally {
+                zis.close();
+            }
+        }
+    }
+
+    @Test
+    public void sanitizesAndDeduplicatesNames() throws Exception {
+        List<Uri> uris = Arrays.asList(
+                addSource("../../evil.txt", "text/plain", repeatedText(10)),
+                addSource("..\\..\\windows.txt", "text/plain", repeatedText(11)),
+                addSource("a/./b.txt", "text/plain", repeatedText(12)),
+                addSource("dup.txt", "text/plain", repeatedText(13)),
+                addSource("DUP.txt", "text/plain", repeatedText(14)),
+                addSource("/dup.txt", "text/plain", repeatedText(15)),
+                addSource("..", null, repeatedText(16)));
+
+        File target = temporaryFolder.newFile();
+        export(new ZipExporter.Builder(RuntimeEnvironment.application).build(), uris, target);
+
+        List<String> names = new ArrayList<>();
+        ZipFile zip = new ZipFile(target);
+        try {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                names.add(entry.getName());
+            }
+        } finally {
+            zip.close();
+        }
+        assertEquals(Arrays.asList("evil.txt", "windows.txt", "a_b.txt", "dup.txt", "DUP (1).txt", "dup (2).txt",
+                "file"), names);
+
+        assertEquals("passwd", ZipExporter.sanitizeName("/../../etc/../passwd"));
+        assertEquals("dir_.hidden", ZipExporter.sanitizeName("dir\\.hidden"));
+        assertEquals("", ZipExporter.sanitizeName("./.."));
+    }
+
+    @Test
+    public void truncatesLongerTarget() throws Exception {
+        File target = writeFile(temporaryFolder.newFile(), randomBytes(512 * 1024));
+        byte[] photo = randomBytes(1000);
+        List<Uri> uris = Collections.singletonList(addSource("photo.jpg", "image/jpeg", photo));
+
+        export(new ZipExporter.Builder(RuntimeEnvironment.application).build(), uris, target);
+
+        assertTrue(target.length() < 2000);
+        ZipFile zip = new ZipFile(target);
+        try {
+            assertEquals(1, zip.size());
+            assertEntry(zip, "photo.jpg", ZipEntry.STORED, photo);
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void export(ZipExporter exporter, List<Uri> uris, File target) {
+        TestSubscriber<ZipExporter.Progress> ts = exporter.export(uris, Uri.fromFile(target)).test();
+        assertTrue(ts.awaitTerminalEvent(10, TimeUnit.SECONDS));
+        ts.assertNoErrors();
+        ts.assertComplete();
+        ZipExporter.Progress last = ts.values().get(ts.valueCount() - 1);
+        assertEquals(uris.size(), last.getWrittenEntries());
+        assertEquals(uris.size(), last.getTotalEntries());
+    }
+
+    private static void assertEntry(ZipFile zip, String name, int method, byte[] expected) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        assertNotNull(name, entry);
+        assertEquals(name, method, entry.getMethod());
+        assertEquals(name, crc(expected), entry.getCrc());
+        assertEquals(name, expected.length, entry.getSize());
+        InputStream is = zip.getInputStream(entry);
+        try {
+            assertArrayEquals(name, expected, readFully(is));
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void assertLocalEntry(ZipInputStream zis, String name, byte[] expected, boolean zip64)
+            throws IOException {
+        ZipEntry entry = zis.getNextEntry();
+        assertNotNull(name, entry);
+        assertEquals(name, entry.getName());
+        byte[] extra = entry.getExtra();
+        assertEquals(name, zip64, extra != null && extra.length >= 2 && extra[0] == 1 && extra[1] == 0);
+        assertArrayEquals(name, expected, readFully(zis));
+        // Only known once the entry's data has been read
+        assertEquals(name, crc(expected), entry.getCrc());
+    }
+
+    private static Uri addSource(String displayName, String mimeType, byte[] data) throws IOException {
+        String id = String.valueOf(TestProvider.SOURCES.size());
+        File file = File.createTempFile("source", null);
+        file.deleteOnExit();
+        TestProvider.SOURCES.put(id, new TestProvider.Source(displayName, mimeType, writeFile(file, data)));
+        return new Uri.Builder().scheme("content").authority(AUTHORITY).appendPath(id).build();
+    }
+
+    private static File writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        return baos.toByteArray();
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] repeatedText(int length) {
+        byte[] text = "All work and no play makes Jack a dull boy. ".getBytes();
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = text[i % text.length];
+        }
+        return data;
+    }
+
+    /**
+     * Serves files with a display name, size and type, like a document provider would.
+     */
+    public static final class TestProvider extends ContentProvider {
+
+        static final Map<String, Source> SOURCES = new HashMap<>();
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            Source source = SOURCES.get(uri.getLastPathSegment());
+            if (source == null) {
+                return null;
+            }
+            MatrixCursor cursor = new MatrixCursor(projection);
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) {
+                    row[i] = source.displayName;
+                } else if (OpenableColumns.SIZE.equals(projection[i])) {
+                    row[i] = source.file.length();
+                }
+            }
+            cursor.addRow(row);
+            return cursor;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            Source source = SOURCES.get(uri.getLastPathSegment());
+            return source != null ? source.mimeType : null;
+        }
+
+        @Override
+        public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+            Source source = SOURCES.get(uri.getLastPathSegment());
+            if (source == null) {
+                throw new FileNotFoundException(uri.toString());
+            }
+            return ParcelFileDescriptor.open(source.file, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+
+        static final class Source {
+
+            private final String displayName;
+
+            private final String mimeType;
+
+            private final File file;
+
+            Source(String displayName, String mimeType, File file) {
+                this.displayName = displayName;
+                this.mimeType = mimeType;
+                this.file = file;
+            }
+
+        }
+
+    }
+
+}